@@ -0,0 +1,68 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Time to build a 16-bit level table with the integer ramp, against the double and Math.round
+ * loop it replaced, per range of the table and the white it ramps to.
+ * In the plugin's package, since the tables are package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1)
+public class LevelLutBenchmark {
+
+	@Param({ "255", "4095", "65535" })
+	public int range ;
+
+	@Param({ "4095", "65535" })
+	public int white ;
+
+
+	@Benchmark
+	public short[] integerRamp() {
+		return AutoLevel_Slice.levelLut16( 100, 100+range > 65535 ? 65535 : 100+range, white );
+	}
+
+
+	// The table as it was built before the integer ramp
+	@Benchmark
+	public short[] doubleRound() {
+		int thisSliceMin = 100, thisSliceMax = 100+range > 65535 ? 65535 : 100+range;
+		short[] lut = new short[65536];
+		double gradient = (double)( (double)white / ( (double)thisSliceMax - (double)thisSliceMin ) );
+		for( int value=thisSliceMin; value<=thisSliceMax; value++ ) {
+			lut[value] = (short)( (int)Math.round( ( value -(double)thisSliceMin )*gradient ) );
+		}
+		Arrays.fill( lut, thisSliceMax+1, 65536, (short)white );
+		return lut;
+	}
+
+}  //end public class LevelLutBenchmark
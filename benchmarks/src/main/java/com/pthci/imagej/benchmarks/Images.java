@@ -0,0 +1,109 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej.benchmarks;
+
+import com.pthci.imagej.AutoLevel_Slice;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+
+/**
+ * Synthetic test stacks and configured levellers shared by the benchmarks.
+ */
+final class Images {
+
+	private Images() {
+	}
+
+
+	// A stack of nSlices width x height slices of the given type ("GRAY8", "GRAY16", "GRAY32" or "RGB"),
+	// filled with noise over a partial range so every slice really needs levelling
+	static ImagePlus synthetic( String type, int width, int height, int nSlices ) {
+		Random random = new Random( 42 );
+		ImageStack stack = new ImageStack( width, height );
+		for( int i=0; i<nSlices; i++ ) {
+			ImageProcessor ip;
+			if     ( type.equals("GRAY8")  ) ip = new ByteProcessor ( width, height );
+			else if( type.equals("GRAY16") ) ip = new ShortProcessor( width, height );
+			else if( type.equals("GRAY32") ) ip = new FloatProcessor( width, height );
+			else if( type.equals("RGB")    ) ip = new ColorProcessor( width, height );
+			else throw new IllegalArgumentException( "unknown type "+type );
+			Object pixels = ip.getPixels();
+			for( int pixelPos=0; pixelPos<width*height; pixelPos++ ) {
+				if     ( pixels instanceof byte[]  ) ((byte[]) pixels)[pixelPos] = (byte) ( 20 + random.nextInt(200) );
+				else if( pixels instanceof short[] ) ((short[])pixels)[pixelPos] = (short)( 300 + random.nextInt(4000) );
+				else if( pixels instanceof float[] ) ((float[])pixels)[pixelPos] = 0.1f + 0.7f*random.nextFloat();
+				else                                 ((int[])  pixels)[pixelPos] = random.nextInt() & 0xffffff;
+			}
+			stack.addSlice( ip );
+		}
+		return new ImagePlus( type, stack );
+	} //end static ImagePlus synthetic(String type, int width, int height, int nSlices)
+	//-----------------------------------------------------
+
+
+	// A copy of the pixels of every slice of image, for restore() to put back
+	static Object[] snapshot( ImagePlus image ) {
+		ImageStack stack = image.getStack();
+		Object[] pixels = new Object[ stack.getSize() ];
+		for( int i=0; i<pixels.length; i++ ) pixels[i] = stack.getProcessor( i+1 ).duplicate().getPixels();
+		return pixels;
+	} //end static Object[] snapshot(ImagePlus image)
+	//-----------------------------------------------------
+
+
+	// Copy the pixels taken by snapshot() back into the slices of image, which are levelled in place
+	static void restore( ImagePlus image, Object[] pixels ) {
+		ImageStack stack = image.getStack();
+		for( int i=0; i<pixels.length; i++ ) {
+			System.arraycopy( pixels[i], 0, stack.getPixels( i+1 ), 0, image.getWidth()*image.getHeight() );
+		}
+	} //end static void restore(ImagePlus image, Object[] pixels)
+	//-----------------------------------------------------
+
+
+	// A leveller set up on image for mode "slice", "wholeStack" or "saturated", or for the options
+	// "sampled" (1% strided, pixels levelled from the samples), "jittered" (the same, jittered),
+	// "region" (statistics from a centred oval of half the width and height), "to8bit" (16 and
+	// 32-bit levelled into 8-bit) or "targetRange" (GRAY16 to 12 bits, GRAY32 to -1 to 1)
+	static AutoLevel_Slice leveller( ImagePlus image, String mode ) {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setup( "", image );
+		if     ( mode.equals("wholeStack") ) leveller.setWholeStack( true );
+		else if( mode.equals("saturated")  ) leveller.setSaturated( 0.35 );
+		else if( mode.equals("sampled") || mode.equals("jittered") ) {
+			leveller.setSampling( 0.01, mode.equals("jittered") );
+			leveller.setFullScanToCommit( false );
+		}
+		else if( mode.equals("region")     ) {
+			int width = image.getWidth(), height = image.getHeight();
+			leveller.setStatsRegion( new OvalRoi( width/4, height/4, width/2, height/2 ) );
+		}
+		else if( mode.equals("to8bit")     ) leveller.setConvertTo8Bit( true );
+		else if( mode.equals("targetRange") ) {
+			if( image.getType() == ImagePlus.GRAY16 ) leveller.setTargetBitDepth( 12 );
+			else                                      leveller.setTargetRange( -1.0, 1.0 );
+		}
+		else if( !mode.equals("slice")     ) throw new IllegalArgumentException( "unknown mode "+mode );
+		return leveller;
+	} //end static AutoLevel_Slice leveller(ImagePlus image, String mode)
+	//-----------------------------------------------------
+
+}  //end class Images
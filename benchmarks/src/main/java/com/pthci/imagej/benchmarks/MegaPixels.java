@@ -0,0 +1,34 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Counts the megapixels levelled, which JMH reports as a rate, i.e. MPixel/s,
+ * alongside the ops/s of each benchmark.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class MegaPixels {
+	public double megaPixels ;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		megaPixels = 0;
+	}
+}  //end public class MegaPixels
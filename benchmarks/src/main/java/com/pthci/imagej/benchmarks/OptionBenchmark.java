@@ -0,0 +1,90 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej.benchmarks;
+
+import com.pthci.imagej.AutoLevel_Slice;
+import ij.ImagePlus;
+import ij.Prefs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Throughput of the statistics and output options against plain per-slice levelling ("slice")
+ * on the 16 and 32-bit slices they are for: sampling, jittered sampling, a selection, 8-bit
+ * conversion and a target range, per slice size and thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx4g" })
+public class OptionBenchmark {
+
+	@Param({ "GRAY16", "GRAY32" })
+	public String type ;
+
+	@Param({ "2048", "8192" })
+	public int size ;
+
+	@Param({ "slice", "sampled", "jittered", "region", "to8bit", "targetRange" })
+	public String mode ;
+
+	@Param({ "1", "4", "16" })
+	public int threads ;
+
+	private ImagePlus       image ;
+	private AutoLevel_Slice leveller ;
+	private Object[]        source ;
+
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Prefs.setThreads( threads );
+		image    = Images.synthetic( type, size, size, 1 );
+		leveller = Images.leveller( image, mode );
+		source   = Images.snapshot( image );
+	}
+
+
+	// the levelling modes are in place, so put the unlevelled pixels back before every call,
+	// untimed, rather than time re-levelling pixels that already span the output range
+	@Setup(Level.Invocation)
+	public void restorePixels() {
+		Images.restore( image, source );
+	}
+
+
+	// Conversion replaces the stack in place with an 8-bit one, after which there would be
+	// nothing left to convert, so it is timed into a new image instead; the rest level in place
+	@Benchmark
+	public Object level( MegaPixels counter ) {
+		counter.megaPixels += (double)size*size / 1e6 ;
+		if( mode.equals("to8bit") ) return leveller.processToNewImage( image );
+		leveller.run( image.getProcessor() );
+		return image;
+	}
+
+}  //end public class OptionBenchmark
@@ -0,0 +1,262 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.FileSaver;
+import ij.plugin.filter.PlugInFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Headless command line batch leveller.
+ * <p>
+ * Levels every image matching the input paths or globs with {@link AutoLevel_Slice} and saves
+ * each result as a TIFF of the same name in the output directory, without starting the ImageJ
+ * GUI. Named without an underscore so ImageJ does not list it as a plugin.
+ * </p>
+ * <pre>
+ * java -cp ij.jar:AutoLevel_Slice.jar com.pthci.imagej.AutoLevelBatch [options] -o outDir input...
+ *
+ *   -o, --output DIR     directory the levelled images are written to (required)
+ *   -j, --jobs N         number of files levelled concurrently (default 1)
+ *   --whole-stack        one mapping for every slice of each stack
+ *   --group GROUPING     planes sharing one mapping: slice, stack, channel, channel_volume,
+ *                        timepoint_volume or channel_over_time (default slice)
+ *   --saturated PERCENT  percent of pixels to saturate at each end, 0 to below 50 (default 0)
+ *   --bits N             bit depth 16-bit images are levelled to, 12 for 0 to 4095 (default from the image)
+ *   --sample FRACTION    level from statistics of this fraction of each slice's pixels, approximate (default 1)
+ *   --8bit               write 16 and 32-bit images levelled straight to 8-bit, in the same pass
+ *   --sidecar            read and write slice statistics in a NAME.levels file next to each input
+ *   --timing             print a timing summary of each image and of the whole batch
+ *   --mapped             level uncompressed 8 and 16-bit TIFFs memory mapped, without loading them
+ *   input                image files, directories, or globs such as "data/*.tif"
+ * </pre>
+ */
+public class AutoLevelBatch {
+	private File    outputDir  ;
+	private int     jobs       = 1 ;
+	private AutoLevel_Slice.Grouping grouping = AutoLevel_Slice.Grouping.SLICE ;
+	private double  saturated  = 0.0 ;
+	private int     bits       = 0 ;
+	private double  sample     = 1.0 ;
+	private boolean to8bit     = false ;
+	private boolean sidecar    = false ;
+	private boolean mapped     = false ;
+	private boolean timing     = false ;
+	private final List<File> inputs = new ArrayList<>();
+
+
+	public static void main(String[] args) throws Exception {
+		//must be set before anything touches AWT, so no ImageJ window or dialog is ever created
+		System.setProperty( "java.awt.headless", "true" );
+		AutoLevelBatch batch = new AutoLevelBatch();
+		try {
+			batch.parse( args );
+		} catch( IllegalArgumentException e ) {
+			System.err.println( e.getMessage() );
+			System.err.println( "usage: AutoLevelBatch [-j jobs] [--whole-stack | --group grouping] [--saturated percent] [--bits n] [--sample fraction] [--8bit] [--sidecar] [--mapped] [--timing] -o outDir input..." );
+			System.exit( 2 );
+		}
+		System.exit( batch.run() == 0 ? 0 : 1 );
+	}  //end public static void main(String[] args)
+	//-----------------------------------------------------
+
+
+	private void parse( String[] args ) throws IOException {
+		for( int i=0; i<args.length; i++ ) {
+			String arg = args[i];
+			if     ( arg.equals("-o") || arg.equals("--output") ) outputDir  = new File( value(args, ++i, arg) );
+			else if( arg.equals("-j") || arg.equals("--jobs")   ) jobs       = Integer.parseInt( value(args, ++i, arg) );
+			else if( arg.equals("--whole-stack")                ) grouping   = AutoLevel_Slice.Grouping.STACK;
+			else if( arg.equals("--group")                      ) grouping   = grouping( value(args, ++i, arg) );
+			else if( arg.equals("--saturated")                  ) saturated  = Double.parseDouble( value(args, ++i, arg) );
+			else if( arg.equals("--bits")                       ) bits       = Integer.parseInt( value(args, ++i, arg) );
+			else if( arg.equals("--sample")                     ) sample     = Double.parseDouble( value(args, ++i, arg) );
+			else if( arg.equals("--8bit")                       ) to8bit     = true;
+			else if( arg.equals("--sidecar")                    ) sidecar    = true;
+			else if( arg.equals("--mapped")                     ) mapped     = true;
+			else if( arg.equals("--timing")                     ) timing     = true;
+			else if( arg.startsWith("-")                        ) throw new IllegalArgumentException( "unknown option "+arg );
+			else expand( arg );
+		}
+		if( outputDir == null ) throw new IllegalArgumentException( "no output directory given" );
+		if( inputs.isEmpty()  ) throw new IllegalArgumentException( "no input images found" );
+		if( jobs < 1          ) throw new IllegalArgumentException( "jobs must be at least 1" );
+		if( !(saturated >= 0 && saturated < 50) ) throw new IllegalArgumentException( "saturated must be at least 0 and below 50" );
+		if( bits < 0 || bits > 16 ) throw new IllegalArgumentException( "bits must be 0 to 16" );
+		if( !(sample > 0 && sample <= 1) ) throw new IllegalArgumentException( "sample must be above 0 and at most 1" );
+	} //end private void parse(String[] args)
+	//-----------------------------------------------------
+
+
+	private static String value( String[] args, int i, String option ) {
+		if( i >= args.length ) throw new IllegalArgumentException( option+" needs a value" );
+		return args[i];
+	} //end private static String value(String[] args, int i, String option)
+	//-----------------------------------------------------
+
+
+	private static AutoLevel_Slice.Grouping grouping( String name ) {
+		try {
+			return AutoLevel_Slice.Grouping.valueOf( name.toUpperCase(Locale.ROOT) );
+		} catch( IllegalArgumentException e ) {
+			throw new IllegalArgumentException( "unknown grouping "+name );
+		}
+	} //end private static AutoLevel_Slice.Grouping grouping(String name)
+	//-----------------------------------------------------
+
+
+	// Add the files named by arg: a file, every file in a directory, or a glob in its last path element
+	private void expand( String arg ) throws IOException {
+		File file = new File( arg );
+		if( file.isFile() ) {
+			inputs.add( file );
+			return;
+		}
+		Path dir = file.isDirectory() ? file.toPath() : file.toPath().toAbsolutePath().getParent();
+		String glob = file.isDirectory() ? "*" : file.getName();
+		if( dir == null || !Files.isDirectory(dir) ) throw new IllegalArgumentException( "no such input "+arg );
+		try( DirectoryStream<Path> matches = Files.newDirectoryStream( dir, glob ) ) {
+			for( Path match : matches ) {
+				if( Files.isRegularFile(match) ) inputs.add( match.toFile() );
+			}
+		}
+	} //end private void expand(String arg)
+	//-----------------------------------------------------
+
+
+	// Level every input, jobs files at a time, returning the number that failed
+	private int run() throws InterruptedException {
+		if( !outputDir.isDirectory() && !outputDir.mkdirs() ) {
+			System.err.println( "could not create "+outputDir );
+			return inputs.size();
+		}
+		//share the cores between the concurrent files rather than oversubscribing them
+		Prefs.setThreads( Math.max( 1, Runtime.getRuntime().availableProcessors() / jobs ) );
+
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool( jobs );
+		List<Future<Boolean>> results = new ArrayList<>();
+		for( final File input : inputs ) results.add( pool.submit( () -> level(input) ) );
+		pool.shutdown();
+		pool.awaitTermination( Long.MAX_VALUE, TimeUnit.DAYS );
+		long wall = System.nanoTime() - start;
+
+		int failed = 0;
+		for( Future<Boolean> result : results ) {
+			try {
+				if( !result.get() ) failed++;
+			} catch( Exception e ) {
+				failed++;
+			}
+		}
+		System.out.println( (inputs.size()-failed)+" of "+inputs.size()+" images levelled into "+outputDir );
+		//the jobs overlap, so the throughput is over the batch's own wall time, not their summed times
+		if( timing ) System.out.println( "total: "+LevelMetrics.TOTAL.getSummary(wall) );
+		return failed;
+	} //end private int run()
+	//-----------------------------------------------------
+
+
+	// Open, level and save one file, reporting rather than throwing on failure
+	private boolean level( File input ) {
+		try {
+			//grouping by channel or frame needs the hyperstack dimensions, so only a file's slices or whole stack map
+			boolean flat = grouping == AutoLevel_Slice.Grouping.SLICE || grouping == AutoLevel_Slice.Grouping.STACK;
+			if( mapped && flat && !sidecar && !to8bit && sample == 1 && AutoLevel_Slice.canProcessFile( input.getPath() ) ) return levelMapped( input );
+			ImagePlus image = IJ.openImage( input.getPath() );
+			if( image == null ) {
+				System.err.println( input+": could not be opened" );
+				return false;
+			}
+			AutoLevel_Slice leveller = new AutoLevel_Slice();
+			int flags = leveller.setup( "", image );
+			if( (flags & supported(image)) == 0 ) {
+				System.err.println( input+": image type not supported" );
+				return false;
+			}
+			leveller.setGrouping( grouping );
+			leveller.setSaturated( saturated );
+			leveller.setTargetBitDepth( bits );
+			leveller.setConvertTo8Bit( to8bit );
+			leveller.setSampling( sample, false );
+			leveller.setFullScanToCommit( false ); //a batch has no preview, --sample is asked for to level from samples
+			leveller.setSidecar( sidecar );
+			leveller.setLogTiming( timing );
+			leveller.run( image.getProcessor() );
+
+			File output = output( input );
+			if( !new FileSaver(image).saveAsTiff( output.getPath() ) ) {
+				System.err.println( input+": could not save "+output );
+				return false;
+			}
+			System.out.println( input+" -> "+output );
+			return true;
+		} catch( RuntimeException e ) {
+			System.err.println( input+": "+e );
+			return false;
+		}
+	} //end private boolean level(File input)
+	//-----------------------------------------------------
+
+
+	// Level an uncompressed TIFF file to file through memory maps, never loading it into ImageJ
+	private boolean levelMapped( File input ) {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setGrouping( grouping );
+		leveller.setSaturated( saturated );
+		leveller.setTargetBitDepth( bits );
+		File output = output( input );
+		leveller.processFile( input.getPath(), output.getPath() );
+		System.out.println( input+" -> "+output+" (mapped)" );
+		return true;
+	} //end private boolean levelMapped(File input)
+	//-----------------------------------------------------
+
+
+	private File output( File input ) {
+		String name = input.getName();
+		int dot = name.lastIndexOf( '.' );
+		return new File( outputDir, (dot > 0 ? name.substring(0, dot) : name) + ".tif" );
+	} //end private File output(File input)
+	//-----------------------------------------------------
+
+
+	// The PlugInFilter DOES_ flag matching the type of image
+	private static int supported( ImagePlus image ) {
+		switch( image.getType() ) {
+			case ImagePlus.GRAY8     : return PlugInFilter.DOES_8G ;
+			case ImagePlus.GRAY16    : return PlugInFilter.DOES_16 ;
+			case ImagePlus.GRAY32    : return PlugInFilter.DOES_32 ;
+			case ImagePlus.COLOR_RGB : return PlugInFilter.DOES_RGB ;
+			default                  : return 0 ;
+		}
+	} //end private static int supported(ImagePlus image)
+	//-----------------------------------------------------
+
+}  //end public class AutoLevelBatch
@@ -14,9 +14,28 @@ package com.pthci.imagej;
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+import ij.io.SaveDialog;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
-import ij.process.ColorProcessor;
+import ij.util.ThreadUtil;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 public class AutoLevel_Slice implements PlugInFilter {
@@ -27,6 +46,83 @@ public class AutoLevel_Slice implements PlugInFilter {
 	private int height  ;
 	private int type    ;
 	private int nSlices ;
+	private int imageBits = 16 ; //significant bits of a GRAY16 image, 12 for a 12-bit camera
+
+	// options
+	private Grouping grouping  = Grouping.SLICE ; //which slices share the statistics they are levelled from
+	private double  saturated  = 0.0   ; //percent of pixels at each end allowed to saturate
+	private double  targetMin  = Double.NaN ; //value levelled to black, NaN for the type's own
+	private double  targetMax  = Double.NaN ; //value levelled to white, NaN for the type's own
+	private int     bits16     = 0     ; //significant bits GRAY16 is levelled to, 0 to take them from the image
+	private boolean newImage   = false ; //level into a new image, leaving the original untouched
+	private boolean to8bit     = false ; //level 16 and 32-bit images straight into 8-bit slices
+	private StatsRegion region ; //statistics from this part of each slice only, null for the whole frame
+	private StatsSampler sampler ; //statistics from a sample of each slice, null for every pixel
+	private boolean fullScanToCommit = true ; //sample only for display range previews, never to change pixels
+	private boolean displayOnly = false ; //level the display range of each slice, not its pixels
+	private boolean cacheStats = false ; //reuse the statistics of slices seen before, by content
+	private boolean sidecar    = false ; //also keep the statistics in a file next to the image
+
+	private boolean logTiming  = false ; //log where the time went after each run
+
+	// set by cancel() or Escape, stopping the workers between slices
+	private final AtomicBoolean cancelled = new AtomicBoolean();
+	// the slice pass run last, to report what was done when cancelled
+	private Progress lastPass ;
+	// true while levelling only display ranges, a preview which may be taken from samples
+	private boolean previewing ;
+
+	// timings of this run, also added to the JVM wide totals published over JMX
+	private LevelMetrics metrics = new LevelMetrics( LevelMetrics.TOTAL );
+
+	// while writing a sidecar, the statistics of every slice read so far by content key, otherwise null
+	private Map<Long,SliceStats> sidecarStats ;
+
+	// innermost pixel loops, vectorised where the JVM supports it
+	private final Kernels kernels = Kernels.INSTANCE ;
+	// Flight Recorder spans, doing nothing unless a recording enables them
+	private final Tracer  tracer  = Tracer.INSTANCE ;
+
+	// while levelling with a shared grouping, the statistics each slice is levelled from,
+	// indexed by slice number, with every slice of a group sharing one object; otherwise null
+	private SliceStats[] sharedStats ;
+
+	// slices with at least this many pixels are levelled band by band on all threads
+	private static final int TILED_MIN_PIXELS = 2048*2048 ;
+	// target size of one band of rows, about an L2 cache worth of pixels
+	private static final int BAND_BYTES       = 256*1024 ;
+
+
+	/**
+	 * Which planes of a (hyper)stack are levelled from shared statistics. Planes are grouped
+	 * by their channel, slice and frame position, so every plane of a group gets the same
+	 * mapping and brightness stays consistent within it, while groups stay independent.
+	 */
+	public enum Grouping {
+		/** each plane from its own statistics */
+		SLICE            ( "Each plane" ),
+		/** every plane from the statistics of the whole stack */
+		STACK            ( "Whole stack" ),
+		/** each channel from the statistics of all its slices and frames */
+		CHANNEL          ( "Each channel (all z and t)" ),
+		/** each channel of each frame from the statistics of its z slices */
+		CHANNEL_VOLUME   ( "Each channel volume (z, per t)" ),
+		/** each frame from the statistics of all its channels and z slices */
+		TIMEPOINT_VOLUME ( "Each timepoint volume (c and z, per t)" ),
+		/** each channel of each z slice from the statistics of all its frames */
+		CHANNEL_OVER_TIME( "Each channel across time (t, per z)" );
+
+		private final String label ;
+
+		Grouping( String label ) {
+			this.label = label;
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}  //end public enum Grouping
 	
 	@Override
 	public int setup(String arg, ImagePlus imp) {
@@ -36,6 +132,13 @@ public class AutoLevel_Slice implements PlugInFilter {
 		}
 
 		image = imp;
+		if( imp == null ) return DOES_8G | DOES_16 | DOES_32 | DOES_RGB; //ImageJ reports there is no image
+		if( !showDialog() ) return DONE;
+		//virtual stacks are streamed to a new file, and a new image or display range leaves this one as it was;
+		//converting to 8-bit replaces the stack outright, so there is no snapshot of it to undo to, and
+		//process(ImagePlus) marks the image changed itself since PlugInFilterRunner will not
+		if( displayOnly || newImage || imp.getStack().isVirtual() || ( to8bit && imp.getBitDepth() > 8 && imp.getType() != ImagePlus.COLOR_RGB ) )
+			return DOES_8G | DOES_16 | DOES_32 | DOES_RGB | NO_CHANGES;
 		return DOES_8G | DOES_16 | DOES_32 | DOES_RGB;
 	} //end public int setup(String arg, ImagePlus imp)
 	//-----------------------------------------------------
@@ -47,9 +150,60 @@ public class AutoLevel_Slice implements PlugInFilter {
 		height  = ip.getHeight();
 		type    = image.getType();
 		nSlices = image.getStackSize();
+		imageBits = significantBits( image );
+		File sidecar = sidecarFile( image );
+		if( sidecar != null ) {
+			StatsCache.SHARED.load( sidecar );
+			sidecarStats = new ConcurrentHashMap<>();
+		}
+		metrics = new LevelMetrics( LevelMetrics.TOTAL );
+		cancelled.set( false );
+		IJ.resetEscape();
+		long start = System.nanoTime();
+		try {
+			level( image );
+		} finally {
+			metrics.wall( System.nanoTime() - start );
+			if( sidecar != null ) saveSidecar( sidecar );
+			sidecarStats = null;
+		}
+		if( logTiming ) IJ.log( "AutoLevel Slice: "+metrics.getSummary() );
+		if( wasCancelled() ) {
+			if( lastPass.discarded() ) IJ.log( "AutoLevel Slice: cancelled, nothing was written for "+image.getTitle() );
+			else                       IJ.log( "AutoLevel Slice: cancelled, "+image.getTitle()+" slices levelled: "+lastPass.doneRanges()+" of 1-"+nSlices );
+			IJ.showStatus( "AutoLevel Slice cancelled" );
+		}
+	} //end public void run(ImageProcessor ip)
+	//-----------------------------------------------------
+
+
+	// Level image in the way the options ask for
+	private void level( ImagePlus image ) {
+		if( displayOnly ) {
+			if( type == ImagePlus.COLOR_RGB ) {
+				IJ.error( "AutoLevel Slice", "Display range only needs a grayscale image;\nthe display range of an RGB image changes its pixels." );
+				return;
+			}
+			processDisplayRange( image );
+			return;
+		}
+		if( image.getStack().isVirtual() ) {
+			SaveDialog sd = new SaveDialog( "Save levelled stack as", image.getShortTitle()+"-levelled", ".tif" );
+			if( sd.getFileName() == null ) return;
+			//an uncompressed file is levelled where it lies, without reading it through ImageJ
+			File source = mappableSource( image );
+			if( source != null && !converting() && region == null ) processFile( source.getPath(), tiffInfo(source.getPath()), sd.getDirectory() + sd.getFileName(), imageBits );
+			else                 process( image, sd.getDirectory() + sd.getFileName() );
+			return;
+		}
+		if( newImage ) {
+			ImagePlus levelled = processToNewImage( image );
+			if( levelled != null && !GraphicsEnvironment.isHeadless() ) levelled.show();
+			return;
+		}
 		process(image);
 		image.updateAndDraw();
-	} //end public void run(ImageProcessor ip)
+	} //end private void level(ImagePlus image)
 	//-----------------------------------------------------
 
 
@@ -65,17 +219,493 @@ public class AutoLevel_Slice implements PlugInFilter {
 	 * change the {@link #setup(java.lang.String, ij.ImagePlus)} method to return also the
 	 * <i>DOES_NOTHING</i> flag.
 	 * </p>
+	 * <p>
+	 * Every slice is levelled in place, with the options set on this instance, so it can be
+	 * called without {@link #setup(String, ImagePlus)}. With {@link #setConvertTo8Bit(boolean)}
+	 * a 16 or 32-bit image instead has its stack replaced by the levelled 8-bit one.
+	 * </p>
 	 *
 	 * @param image the image (possible multi-dimensional)
 	 */
 	public void process(ImagePlus image) {
-		// slice numbers start with 1 for historical reasons
-		for (int i = 1; i <= nSlices; i++)
-			process( image.getStack().getProcessor(i) );
+		width   = image.getWidth();
+		height  = image.getHeight();
+		type    = image.getType();
+		nSlices = image.getStackSize();
+		imageBits = significantBits( image );
+		if( converting() ) {
+			//the 8-bit slices replace the originals, as Image>Type>8-bit would, but from one pass
+			ImagePlus levelled = processToNewImage( image );
+			if( levelled != null ) {
+				image.setStack( levelled.getStack() );
+				image.changes = true; //the 16 or 32-bit data is gone unless saved elsewhere, so closing asks to save
+			}
+			return;
+		}
+		final ImageStack stack = image.getStack();
+		//when slices share statistics a first pass over every slice finds those of each group,
+		//which the second pass then levels every slice from instead of its own
+		Object span = tracer.beginImage();
+		sharedStats = sharedStats( image );
+		try {
+			forEachSlice( stack, i -> {
+				long start = System.nanoTime();
+				ImageProcessor ip = stack.getProcessor(i);
+				level( i, ip, ip.getPixels(), System.nanoTime() - start );
+			});
+		} finally {
+			sharedStats = null;
+		}
+		tracer.endImage( span, nSlices, type, (long)width*height*nSlices );
 	} //end public void process(ImagePlus image) 
 	//-----------------------------------------------------
 
 
+	/**
+	 * Level an image into a new image, leaving the original untouched.
+	 * <p>
+	 * Each kernel reads the source slice and writes straight into the new slice, so this costs
+	 * one read and one write per pixel, against duplicating the image and then levelling the
+	 * copy in place, which writes every pixel twice.
+	 * </p>
+	 *
+	 * @param image the image to level (possible multi-dimensional)
+	 * @return the levelled image, not yet shown, or null if cancelled before every slice was levelled
+	 */
+	public ImagePlus processToNewImage(ImagePlus image) {
+		width   = image.getWidth();
+		height  = image.getHeight();
+		type    = image.getType();
+		nSlices = image.getStackSize();
+		imageBits = significantBits( image );
+		final ImageStack stack    = image.getStack();
+		final ImageStack levelled = new ImageStack( width, height, nSlices );
+		levelled.setColorModel( stack.getColorModel() );
+		final int outputType = outputType();
+		Object span = tracer.beginImage();
+		sharedStats = sharedStats( image );
+		try {
+			forEachSlice( stack, i -> {
+				Object pixels = PixelBufferPool.allocate( outputType, width*height );
+				long start = System.nanoTime();
+				ImageProcessor ip = stack.getProcessor(i);
+				level( i, ip, pixels, System.nanoTime() - start );
+				levelled.setPixels( pixels, i );
+			});
+		} finally {
+			sharedStats = null;
+		}
+		tracer.endImage( span, nSlices, type, (long)width*height*nSlices );
+		if( wasCancelled() ) {
+			lastPass.discard();
+			return null;
+		}
+		for( int i=1; i<=nSlices; i++ ) levelled.setSliceLabel( stack.getSliceLabel(i), i );
+
+		ImagePlus output = new ImagePlus( image.getShortTitle()+"-levelled", levelled );
+		output.setCalibration( image.getCalibration() );
+		output.setDimensions( image.getNChannels(), image.getNSlices(), image.getNFrames() );
+		output.setOpenAsHyperStack( image.isHyperStack() );
+		return output;
+	} //end public ImagePlus processToNewImage(ImagePlus image)
+	//-----------------------------------------------------
+
+
+	/**
+	 * Level how an image is shown, rather than its pixels.
+	 * <p>
+	 * One pass finds the levelling range of every slice, honouring the grouping and saturation
+	 * options, and caches it. From then on each slice gets its range as its display range when it
+	 * is shown, so browsing a huge stack costs nothing per slice and the raw data stays as it was.
+	 * Only for grayscale images, since setting the display range of an RGB image changes its pixels.
+	 * </p>
+	 * <p>
+	 * With {@link #setSampling(double, boolean)} the ranges are from the samples, even with
+	 * {@link #setFullScanToCommit(boolean)} on, and are not refined by a full scan afterwards.
+	 * </p>
+	 *
+	 * @param image the image to level the display of (possible multi-dimensional)
+	 */
+	public void processDisplayRange(ImagePlus image) {
+		width   = image.getWidth();
+		height  = image.getHeight();
+		type    = image.getType();
+		nSlices = image.getStackSize();
+		final ImageStack stack = image.getStack();
+		final double[] low  = new double[ nSlices+1 ];
+		final double[] high = new double[ nSlices+1 ];
+		//only the two range ends of each slice are kept, not its statistics
+		previewing = true;
+		try {
+			final SliceStats[] shared = sharedStats( image );
+			forEachSlice( stack, i -> {
+				SliceStats stats = shared != null ? shared[i] : firstPass( stack, i );
+				low [i] = stats.low ( 0, saturated );
+				high[i] = stats.high( 0, saturated );
+			});
+		} finally {
+			previewing = false;
+		}
+		if( !wasCancelled() ) new DisplayRanges( image, low, high ).install();
+	} //end public void processDisplayRange(ImagePlus image)
+	//-----------------------------------------------------
+
+
+	/**
+	 * Stream a stack, typically a virtual one, to a TIFF file, levelling each slice as it is read.
+	 * <p>
+	 * The source is left untouched. Slices are read, levelled into a small pool of reused
+	 * buffers and written one at a time, with the read of the next slice overlapping the
+	 * levelling of the current one, so stacks much larger than the heap can be processed in
+	 * bounded memory. When slices share statistics the stack is read twice, once for the
+	 * statistics and once to level and write it.
+	 * </p>
+	 * <p>
+	 * Escape or {@link #cancel()} stops the save between slices and deletes the partly written file.
+	 * </p>
+	 *
+	 * @param image      the image to level, usually opened as a virtual stack
+	 * @param outputPath the TIFF file to write the levelled stack to
+	 */
+	public void process(ImagePlus image, String outputPath) {
+		width   = image.getWidth();
+		height  = image.getHeight();
+		type    = image.getType();
+		nSlices = image.getStackSize();
+		imageBits = significantBits( image );
+		Object span = tracer.beginImage();
+		sharedStats = sharedStats( image );
+		if( cancelled.get() ) {
+			//stopped in the statistics pass, before anything was written
+			lastPass    = new Progress( nSlices, cancelled );
+			lastPass.discard();
+			sharedStats = null;
+			return;
+		}
+		final Progress progress = new Progress( nSlices, cancelled );
+		lastPass = progress;
+		PixelBufferPool pool = new PixelBufferPool( outputType(), width*height );
+		LevellingVirtualStack levelled = new LevellingVirtualStack( image.getStack(), this, pool, progress );
+		try {
+			ImagePlus output = new ImagePlus( image.getTitle(), levelled );
+			output.setCalibration( image.getCalibration() );
+			output.setDimensions( image.getNChannels(), image.getNSlices(), image.getNFrames() );
+			output.setOpenAsHyperStack( image.isHyperStack() );
+			if( !new FileSaver(output).saveAsTiff(outputPath) )
+				throw new RuntimeException( "could not save "+outputPath );
+		} catch( CancellationException e ) {
+			//a TIFF cut off part way through is of no use, so none is left behind
+			progress.discard();
+			new File( outputPath ).delete();
+		} finally {
+			progress.finish();
+			levelled.dispose();
+			sharedStats = null;
+		}
+		tracer.endImage( span, nSlices, type, (long)width*height*nSlices );
+	} //end public void process(ImagePlus image, String outputPath)
+	//-----------------------------------------------------
+
+
+	/**
+	 * Level an uncompressed 8 or 16-bit greyscale TIFF file on disk, without loading it.
+	 * <p>
+	 * Each slice is memory mapped and levelled from and to the mapped pages with the same
+	 * histograms and lookup tables as the in-memory kernels, see {@link MappedFileLeveller}.
+	 * Only per-slice and whole stack statistics are supported, since the file carries no
+	 * dimensions to group by. Escape or {@link #cancel()} stops it between slices: levelled in
+	 * place, the slices done stay levelled; levelled into a new file, that file is deleted.
+	 * </p>
+	 * <p>
+	 * There is no ImagePlus to read a bit depth property from, so 16-bit files are levelled to
+	 * the bit depth set by {@link #setTargetBitDepth(int)}, else ImageJ's 16-bit range option,
+	 * else all 16 bits.
+	 * </p>
+	 *
+	 * @param inputPath  the TIFF file to level
+	 * @param outputPath the file to write the levelled TIFF to, or null to level the input in place
+	 */
+	public void processFile(String inputPath, String outputPath) {
+		processFile( inputPath, tiffInfo(inputPath), outputPath, significantBits(null) );
+	} //end public void processFile(String inputPath, String outputPath)
+	//-----------------------------------------------------
+
+
+	private static FileInfo[] tiffInfo( String path ) {
+		try {
+			return MappedFileLeveller.tiffInfo( new File(path) );
+		} catch( IOException e ) {
+			throw new RuntimeException( "could not level "+path+": "+e.getMessage(), e );
+		}
+	} //end private static FileInfo[] tiffInfo(String path)
+	//-----------------------------------------------------
+
+
+	/**
+	 * Level an uncompressed 8 or 16-bit greyscale raw file on disk, without loading it, as
+	 * {@link #processFile(String, String)} does for a TIFF. info describes the layout as for
+	 * File&gt;Import&gt;Raw: fileType, width, height, offset, nImages, gapBetweenImages and
+	 * intelByteOrder. The 16-bit white is chosen as for a TIFF.
+	 *
+	 * @param inputPath  the raw file to level
+	 * @param info       the layout of the images in the file
+	 * @param outputPath the file to write the levelled copy to, or null to level the input in place
+	 */
+	public void processFile(String inputPath, FileInfo info, String outputPath) {
+		processFile( inputPath, new FileInfo[] { info }, outputPath, significantBits(null) );
+	} //end public void processFile(String inputPath, FileInfo info, String outputPath)
+	//-----------------------------------------------------
+
+
+	// Level a file with the layout info, GRAY16 to the white of imageBits unless a bit depth is set
+	private void processFile(String inputPath, FileInfo[] info, String outputPath, int imageBits) {
+		if( grouping != Grouping.SLICE && grouping != Grouping.STACK ) {
+			throw new RuntimeException("not supported");
+		}
+		MappedFileLeveller leveller = new MappedFileLeveller( grouping == Grouping.STACK, saturated,
+		                                                      white16( imageBits ), metrics, tracer, cancelled );
+		try {
+			leveller.level( new File(inputPath), info, outputPath == null ? null : new File(outputPath) );
+		} catch( IOException e ) {
+			throw new RuntimeException( "could not level "+inputPath+": "+e.getMessage(), e );
+		} finally {
+			lastPass = leveller.lastPass();
+		}
+	} //end private void processFile(String inputPath, FileInfo[] info, String outputPath, int imageBits)
+	//-----------------------------------------------------
+
+
+	/**
+	 * True when path is an uncompressed 8 or 16-bit greyscale TIFF that
+	 * {@link #processFile(String, String)} can level on disk.
+	 *
+	 * @param path the file to check
+	 * @return whether the file can be levelled memory mapped
+	 */
+	public static boolean canProcessFile(String path) {
+		try {
+			return MappedFileLeveller.canLevel( MappedFileLeveller.tiffInfo( new File(path) ) );
+		} catch( IOException e ) {
+			return false;
+		}
+	} //end public static boolean canProcessFile(String path)
+	//-----------------------------------------------------
+
+
+	// The TIFF file a virtual stack was opened from, if it can be levelled memory mapped with the current options
+	private File mappableSource( ImagePlus image ) {
+		if( grouping != Grouping.SLICE && grouping != Grouping.STACK ) return null;
+		if( cacheStats || sidecarStats != null ) return null;
+		FileInfo fi = image.getOriginalFileInfo();
+		if( fi == null || fi.directory == null || fi.directory.isEmpty() || fi.fileName == null ) return null;
+		File file = new File( fi.directory, fi.fileName );
+		return file.isFile() && canProcessFile( file.getPath() ) ? file : null;
+	} //end private File mappableSource(ImagePlus image)
+	//-----------------------------------------------------
+
+
+	/**
+	 * Stop levelling as soon as the slices being levelled now are done, as pressing Escape does.
+	 * Safe to call from any thread. Slices are never left half levelled; those done are logged.
+	 * Stays in effect until the next {@link #run(ImageProcessor)}.
+	 */
+	public void cancel() {
+		cancelled.set( true );
+	} //end public void cancel()
+	//-----------------------------------------------------
+
+
+	/**
+	 * Whether the last run was cancelled, by {@link #cancel()} or Escape, before every slice was levelled.
+	 *
+	 * @return true if some slices were left as they were
+	 */
+	public boolean wasCancelled() {
+		return cancelled.get() && lastPass != null && !lastPass.complete();
+	} //end public boolean wasCancelled()
+	//-----------------------------------------------------
+
+
+	// First pass when slices share statistics: the statistics of every slice, reduced to one per
+	// group of the current grouping, indexed by slice number. Null when each slice has its own.
+	// Slices of all groups are read in parallel and only the reduced statistics are kept, so this
+	// reads each slice once without holding on to it.
+	private SliceStats[] sharedStats( ImagePlus image ) {
+		if( grouping == Grouping.SLICE ) return null;
+		final ImageStack stack = image.getStack();
+		final int[] group = groups( image );
+		final SliceStats[] reduced = new SliceStats[ nSlices+1 ];
+		forEachSlice( stack, i -> {
+			SliceStats sliceStats = firstPass( stack, i );
+			synchronized( reduced ) {
+				if( reduced[group[i]] == null ) reduced[group[i]] = sliceStats.copy();
+				else                            reduced[group[i]].include( sliceStats );
+			}
+		});
+		SliceStats[] shared = new SliceStats[ nSlices+1 ];
+		for( int i=1; i<=nSlices; i++ ) shared[i] = reduced[ group[i] ];
+		return shared;
+	} //end private SliceStats[] sharedStats(ImagePlus image)
+	//-----------------------------------------------------
+
+
+	// Read and scan slice i of stack, timing both
+	private SliceStats firstPass( ImageStack stack, int i ) {
+		long start = System.nanoTime();
+		ImageProcessor ip = stack.getProcessor(i);
+		long read = System.nanoTime();
+		Object span = tracer.beginPass();
+		SliceStats stats = stats( ip );
+		tracer.endPass( span, "stats", i, type, (long)width*height );
+		metrics.firstPass( read - start, System.nanoTime() - read );
+		return stats;
+	} //end private SliceStats firstPass(ImageStack stack, int i)
+	//-----------------------------------------------------
+
+
+	// The group of every slice under the current grouping, indexed by slice number.
+	// Groups are numbered from the position of the plane in the hyperstack, so every
+	// slice number maps to one of at most nSlices groups.
+	private int[] groups( ImagePlus image ) {
+		int nChannels = image.getNChannels();
+		int nZ        = image.getNSlices();
+		int nFrames   = image.getNFrames();
+		int[] group = new int[ nSlices+1 ];
+		for( int t=1; t<=nFrames; t++ ) {
+			for( int z=1; z<=nZ; z++ ) {
+				for( int c=1; c<=nChannels; c++ ) {
+					int i = image.getStackIndex( c, z, t );
+					switch( grouping ) {
+						case STACK             : group[i] = 0;                       break;
+						case CHANNEL           : group[i] = c-1;                     break;
+						case CHANNEL_VOLUME    : group[i] = (t-1)*nChannels + (c-1); break;
+						case TIMEPOINT_VOLUME  : group[i] = t-1;                     break;
+						case CHANNEL_OVER_TIME : group[i] = (z-1)*nChannels + (c-1); break;
+						default                : group[i] = i;                       break;
+					}
+				}
+			}
+		}
+		return group;
+	} //end private int[] groups(ImagePlus image)
+	//-----------------------------------------------------
+
+
+	// A unit of work on slice i of the stack
+	private interface SliceTask {
+		void run( int i );
+	}
+
+
+	// Run task on every slice of the stack.
+	// Slices are independent of each other, so they can be handed out to worker threads in any
+	// order and still give exactly the same result as the serial loop. Very large slices are
+	// instead split into bands inside each kernel, see isTiled(), and virtual stacks are read
+	// in order since they are backed by a single file.
+	// Each slice is either run to the end or not started, so on cancel() or Escape the workers
+	// stop between slices and lastPass records which were done.
+	private void forEachSlice( final ImageStack stack, final SliceTask task ) {
+		final Progress progress = new Progress( nSlices, cancelled );
+		lastPass = progress;
+		try {
+			forEachSlice( stack, task, progress );
+		} finally {
+			progress.finish();
+		}
+	} //end private void forEachSlice(ImageStack stack, SliceTask task)
+	//-----------------------------------------------------
+
+
+	private void forEachSlice( final ImageStack stack, final SliceTask task, final Progress progress ) {
+		int nThreads = Math.min( Prefs.getThreads(), nSlices );
+		if( nThreads <= 1 || isTiled() || stack.isVirtual() ) {
+			// slice numbers start with 1 for historical reasons
+			for (int i = 1; i <= nSlices && !progress.stopped(); i++) {
+				task.run( i );
+				progress.done( i );
+			}
+			return;
+		}
+		//bounded pool of nThreads workers, each pulling the next unprocessed slice number
+		//until the stack is exhausted, so uneven slice timings still load-balance.
+		final AtomicInteger nextSlice = new AtomicInteger(1);
+		final Thread[] workers = ThreadUtil.createThreadArray( nThreads );
+		for( int t=0; t<nThreads; t++ ) {
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					for( int i=nextSlice.getAndIncrement(); i<=nSlices && !progress.stopped(); i=nextSlice.getAndIncrement() ) {
+						task.run( i );
+						progress.done( i );
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin( workers );
+	} //end private void forEachSlice(ImageStack stack, SliceTask task, Progress progress)
+	//-----------------------------------------------------
+
+
+	// A contiguous run of whole rows, pixels [from,to), within one slice. worker identifies
+	// which of the workerCount() threads is running it, for per-thread partial results.
+	private interface BandTask {
+		void run( int worker, int band, int from, int to );
+	}
+
+
+	// Slices of at least TILED_MIN_PIXELS are too big to leave to one core, so they are cut into
+	// row bands of about BAND_BYTES (small enough to stay in cache between the two passes).
+	// Smaller slices are a single band, which forEachBand runs inline on the calling thread.
+	private boolean isTiled() {
+		return width*height >= TILED_MIN_PIXELS && Prefs.getThreads() > 1 ;
+	} //end private boolean isTiled()
+	//-----------------------------------------------------
+
+
+	private int rowsPerBand( int bytesPerPixel ) {
+		if( !isTiled() ) return height;
+		return Math.max( 1, Math.min( height, BAND_BYTES / (width*bytesPerPixel) ) );
+	} //end private int rowsPerBand(int bytesPerPixel)
+	//-----------------------------------------------------
+
+
+	private int bandCount( int rowsPerBand ) {
+		return Math.max( 1, (height + rowsPerBand - 1) / rowsPerBand );
+	} //end private int bandCount(int rowsPerBand)
+	//-----------------------------------------------------
+
+
+	private int workerCount( int rowsPerBand ) {
+		return Math.min( Prefs.getThreads(), bandCount(rowsPerBand) );
+	} //end private int workerCount(int rowsPerBand)
+	//-----------------------------------------------------
+
+
+	// Run task over every band of the slice, spreading the bands across workerCount() threads
+	private void forEachBand( final int rowsPerBand, final BandTask task ) {
+		final int nBands = bandCount( rowsPerBand );
+		if( nBands == 1 ) {
+			task.run( 0, 0, 0, width*height );
+			return;
+		}
+		final AtomicInteger nextBand = new AtomicInteger(0);
+		final int nThreads = workerCount( rowsPerBand );
+		final Thread[] workers = ThreadUtil.createThreadArray( nThreads );
+		for( int t=0; t<nThreads; t++ ) {
+			final int worker = t;
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					for( int band=nextBand.getAndIncrement(); band<nBands; band=nextBand.getAndIncrement() )
+						task.run( worker, band, band*rowsPerBand*width, Math.min( height, (band+1)*rowsPerBand )*width );
+				}
+			};
+		}
+		ThreadUtil.startAndJoin( workers );
+	} //end private void forEachBand(int rowsPerBand, BandTask task)
+	//-----------------------------------------------------
+
+
 	// Select processing method depending on image type
 	public void process(ImageProcessor ip) {
 		if      (type == ImagePlus.GRAY8    ) process( (byte[])  ip.getPixels() );
@@ -89,65 +719,490 @@ public class AutoLevel_Slice implements PlugInFilter {
 	//-----------------------------------------------------
 
 
+	// Level the pixels of ip into levelled, an array of the same type and size, leaving ip untouched
+	public void process(ImageProcessor ip, Object levelled) {
+		if      (type == ImagePlus.GRAY8    ) process( (byte[])  ip.getPixels(), (byte[])  levelled );
+		else if (type == ImagePlus.GRAY16   ) process( (short[]) ip.getPixels(), (short[]) levelled );
+		else if (type == ImagePlus.GRAY32   ) process( (float[]) ip.getPixels(), (float[]) levelled );
+		else if (type == ImagePlus.COLOR_RGB) process( (int[])   ip.getPixels(), (int[])   levelled );
+		else {
+			throw new RuntimeException("not supported");
+		}
+	} //end public void process(ImageProcessor ip, Object levelled)
+	//-----------------------------------------------------
+
+
+	// Level slice n, whose processor is ip, into levelled, from the statistics it shares with
+	// its group if there are any, otherwise from its own. readNanos is how long ip took to read.
+	void level( int n, ImageProcessor ip, Object levelled, long readNanos ) {
+		Object sliceSpan = tracer.beginSlice();
+		long start = System.nanoTime();
+		SliceStats stats;
+		if( sharedStats != null ) {
+			stats = sharedStats[n];
+		} else {
+			Object span = tracer.beginPass();
+			stats = stats( ip );
+			tracer.endPass( span, "stats", n, type, (long)width*height );
+		}
+		long scanned = System.nanoTime();
+		Object span = tracer.beginPass();
+		if      (type == ImagePlus.GRAY8    ) remap( (byte[])  ip.getPixels(), (byte[])  levelled, stats );
+		else if (levelled instanceof byte[] ) remapTo8( ip.getPixels(), (byte[]) levelled, stats );
+		else if (type == ImagePlus.GRAY16   ) remap( (short[]) ip.getPixels(), (short[]) levelled, stats );
+		else if (type == ImagePlus.GRAY32   ) remap( (float[]) ip.getPixels(), (float[]) levelled, stats );
+		else if (type == ImagePlus.COLOR_RGB) remap( (int[])   ip.getPixels(), (int[])   levelled, stats );
+		else {
+			throw new RuntimeException("not supported");
+		}
+		tracer.endPass( span, "remap", n, type, (long)width*height );
+		metrics.slice( readNanos, scanned - start, System.nanoTime() - scanned, (long)width*height, (long)width*height*bytesPerPixel() );
+		if( sliceSpan != null ) tracer.endSlice( sliceSpan, n, type, (long)width*height, min(stats), max(stats) );
+	} //end void level(int n, ImageProcessor ip, Object levelled, long readNanos)
+	//-----------------------------------------------------
+
+
+	// lowest and highest value over every channel, for tracing
+	private static double min( SliceStats stats ) {
+		double min = stats.min[0];
+		for( int c=1; c<stats.channels(); c++ ) min = Math.min( min, stats.min[c] );
+		return min;
+	} //end private static double min(SliceStats stats)
+
+	private static double max( SliceStats stats ) {
+		double max = stats.max[0];
+		for( int c=1; c<stats.channels(); c++ ) max = Math.max( max, stats.max[c] );
+		return max;
+	} //end private static double max(SliceStats stats)
+	//-----------------------------------------------------
+
+
+	// The value the low end of the range is levelled to: the target range if set, else black
+	private double targetLow() {
+		return Double.isNaN(targetMin) ? 0.0 : targetMin;
+	} //end private double targetLow()
+
+	// The value the high end of the range is levelled to: the target range if set, else white
+	// (only GRAY32 has a white other than the top of its type; see the integer remaps)
+	private double targetHigh() {
+		return Double.isNaN(targetMax) ? 1.0 : targetMax;
+	} //end private double targetHigh()
+	//-----------------------------------------------------
+
+
+	// Whether 16 and 32-bit slices are levelled into new 8-bit ones
+	private boolean converting() {
+		return to8bit && ( type == ImagePlus.GRAY16 || type == ImagePlus.GRAY32 );
+	} //end private boolean converting()
+
+	// The type of the levelled slices: GRAY8 when converting, otherwise the type of the image
+	int outputType() {
+		return converting() ? ImagePlus.GRAY8 : type;
+	} //end int outputType()
+	//-----------------------------------------------------
+
+
+	private int bytesPerPixel() {
+		if      (type == ImagePlus.GRAY8 ) return 1;
+		else if (type == ImagePlus.GRAY16) return 2;
+		else                               return 4;
+	} //end private int bytesPerPixel()
+	//-----------------------------------------------------
+
+
+	// The statistics of ip: from the cache when the same pixels have been seen before,
+	// otherwise from a first pass over them, which is then cached
+	private SliceStats stats(ImageProcessor ip) {
+		if( region != null ) {
+			//cache keys are of the pixels alone, not the region, so region statistics are never cached
+			SliceStats stats = regionStats( ip.getPixels() );
+			return stats != null ? stats : scan( ip ); //a region wholly off the slice
+		}
+		if( sampler != null && ( previewing || !fullScanToCommit ) ) {
+			//approximate, so never cached where a later full scan would be served it
+			return sampler.stats( ip.getPixels(), type, width, height );
+		}
+		if( !cacheStats && sidecarStats == null ) return scan( ip );
+		long key = contentKey( ip.getPixels() );
+		SliceStats stats = StatsCache.SHARED.get( key, saturated > 0 );
+		if( stats == null ) {
+			stats = scan( ip );
+			StatsCache.SHARED.put( key, stats );
+		}
+		if( sidecarStats != null ) sidecarStats.put( key, stats );
+		return stats;
+	} //end private SliceStats stats(ImageProcessor ip)
+	//-----------------------------------------------------
+
+
+	// Statistics of the pixels of the region, or null when none of it lies in the slice. Rows
+	// are shared out by band like the full scans, each worker into its own histograms.
+	private SliceStats regionStats( final Object pixels ) {
+		if( !region.overlaps( width, height ) ) return null;
+		final int      rowsPerBand = rowsPerBand( bytesPerPixel() );
+		final int      nWorkers    = workerCount( rowsPerBand );
+		final long[]   counted     = new long[ nWorkers ];
+		final int      channels    = type == ImagePlus.COLOR_RGB ? 3 : 1 ;
+		final int      bins        = type == ImagePlus.GRAY8 || type == ImagePlus.COLOR_RGB ? 256 : 65536 ;
+		final int[][][] partial    = new int[ channels ][ nWorkers ][ bins ];
+		final float[][] minMax     = new float[ nWorkers ][] ;
+		for( int worker=0; worker<nWorkers; worker++ ) minMax[worker] = new float[] { Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+		forEachBand( rowsPerBand, (worker, band, from, to) -> {
+			if     ( type == ImagePlus.GRAY8     ) counted[worker] += region.histogram( (byte[]) pixels, width, from/width, to/width, partial[0][worker] );
+			else if( type == ImagePlus.GRAY16    ) counted[worker] += region.histogram( (short[])pixels, width, from/width, to/width, partial[0][worker] );
+			else if( type == ImagePlus.GRAY32    ) counted[worker] += region.histogram( (float[])pixels, width, from/width, to/width, partial[0][worker], minMax[worker] );
+			else if( type == ImagePlus.COLOR_RGB ) counted[worker] += region.histogram( (int[])  pixels, width, from/width, to/width,
+			                                                                             partial[0][worker], partial[1][worker], partial[2][worker] );
+			else {
+				throw new RuntimeException("not supported");
+			}
+		});
+		long total = 0 ;
+		for( long count : counted ) total += count ;
+		if( total == 0 ) return null; //a mask with none of its pixels inside the slice
+		if( type == ImagePlus.COLOR_RGB ) return SliceStats.fromHistograms( sum(partial[0]), sum(partial[1]), sum(partial[2]) );
+		if( type != ImagePlus.GRAY32 )    return SliceStats.fromHistograms( sum(partial[0]) );
+		float thisSliceMin = Float.POSITIVE_INFINITY ;
+		float thisSliceMax = Float.NEGATIVE_INFINITY ;
+		for( int worker=0; worker<nWorkers; worker++ ) {
+			if( minMax[worker][0] < thisSliceMin ) thisSliceMin = minMax[worker][0] ;
+			if( minMax[worker][1] > thisSliceMax ) thisSliceMax = minMax[worker][1] ;
+		}
+		return new SliceStats( new double[] { thisSliceMin }, new double[] { thisSliceMax },
+		                       new long[][] { SliceStats.toLong( sum(partial[0]) ) }, true );
+	} //end private SliceStats regionStats(Object pixels)
+	//-----------------------------------------------------
+
+
+	// Cache key of a slice's pixels, hashed band by band on all threads for large slices
+	private long contentKey( final Object pixels ) {
+		final int rowsPerBand = rowsPerBand( 4 );
+		final long[] partial = new long[ workerCount(rowsPerBand) ];
+		forEachBand( rowsPerBand, (worker, band, from, to) -> partial[worker] += StatsCache.hash( pixels, from, to ) );
+		long sum = 0;
+		for( long hash : partial ) sum += hash;
+		return StatsCache.key( sum, type, width*height );
+	} //end private long contentKey(Object pixels)
+	//-----------------------------------------------------
+
+
+	// Statistics sidecar next to the file image was opened from, or null when not wanted or not from a file
+	private File sidecarFile( ImagePlus image ) {
+		if( !sidecar ) return null;
+		FileInfo fi = image.getOriginalFileInfo();
+		if( fi == null || fi.directory == null || fi.directory.isEmpty() || fi.fileName == null ) return null;
+		return new File( fi.directory, fi.fileName + ".levels" );
+	} //end private File sidecarFile(ImagePlus image)
+	//-----------------------------------------------------
+
+
+	// The sidecar is only an optimisation, so failing to write it is reported, not thrown
+	private void saveSidecar( File sidecar ) {
+		try {
+			StatsCache.save( sidecar, sidecarStats );
+		} catch( IOException e ) {
+			IJ.log( "AutoLevel Slice: could not write "+sidecar+": "+e.getMessage() );
+		}
+	} //end private void saveSidecar(File sidecar)
+	//-----------------------------------------------------
+
+
+	// Select first pass method depending on image type
+	private SliceStats scan(ImageProcessor ip) {
+		if      (type == ImagePlus.GRAY8    ) return stats( (byte[])  ip.getPixels() );
+		else if (type == ImagePlus.GRAY16   ) return stats( (short[]) ip.getPixels() );
+		else if (type == ImagePlus.GRAY32   ) return stats( (float[]) ip.getPixels() );
+		else if (type == ImagePlus.COLOR_RGB) return stats( (int[])   ip.getPixels() );
+		else {
+			throw new RuntimeException("not supported");
+		}
+	} //end private SliceStats scan(ImageProcessor ip)
+	//-----------------------------------------------------
+
+
 	// processing of GRAY8 images
 	public void process(byte[] pixels) {
+		process( pixels, pixels );
+	} //end public void process(byte[] pixels)
+  //-----------------------------------------------------
+
+
+	// levels pixels into levelled, which may be pixels itself
+	public void process(byte[] pixels, byte[] levelled) {
+		remap( pixels, levelled, stats(pixels) );
+	} //end public void process(byte[] pixels, byte[] levelled)
+  //-----------------------------------------------------
+
+
+	// GRAY8 first pass, to find min and max
+	private SliceStats stats(final byte[] pixels) {
 		//pixels = ip.getPixels() is a 1-D array, not a 2D array as you would intuit, so pixels[x+y*width] instead of pixels[x,y]
 		//here as per Invert_Image we can just pixelPos++ through the array for maximum speed
 		//
 		//Images are 8-bit (unsigned, i.e. values between 0 and 255).
 		//Java has no data type for unsigned 8-bit integers: the byte type is signed , so we have to use the & 0xff dance
 		//(a Boolean AND operation) to make sure that the value is treated as unsigned integer,
-		//do the comparisons as integers, and Math.round() is a doublemethod, and then cast back to byte
+		//do the comparisons as integers, and Math.round() is a doublemethod, and then cast back to byte (in levelLut8)
 		//The & operator promotes to int and then that int in a double subraction promotes to double, so doesn't need an explicit cast.
 
-		int thisSliceMin = 255 ; //set as the max possible, update with each value lower
-		int thisSliceMax =   0 ; //set as the min possible, update with each value larger
-		int testedPixelValue ;
-		double gradient ;
+		//saturation needs the histogram, which gives min and max for free in the same pass
+		if( saturated > 0 ) return SliceStats.fromHistograms( histogram8(pixels) );
+
+		final int   rowsPerBand = rowsPerBand( 1 );
+		final int[] bandMin     = new int[ bandCount(rowsPerBand) ];
+		final int[] bandMax     = new int[ bandCount(rowsPerBand) ];
 		
-		//first pass to find min and max
-		for( int pixelPos=0; pixelPos<(width*height); pixelPos++ ) {
-			testedPixelValue = pixels[pixelPos] & 0xff ;
-			if( testedPixelValue < thisSliceMin ) thisSliceMin = testedPixelValue ;
-			if( testedPixelValue > thisSliceMax ) thisSliceMax = testedPixelValue ;
-		}  //end for min-max scan
-		//then second pass to re-level the values
-		gradient = (double)( (double)255.0 / ( (double)thisSliceMax - (double)thisSliceMin ) );
-		for( int pixelPos=0; pixelPos<(width*height); pixelPos++ ) {
-			pixels[pixelPos] = (byte)( (int)Math.round( ( (pixels[pixelPos] & 0xff) -(double)thisSliceMin )*gradient ) );
-		}  //end for set re-level
-	} //end public void process(byte[] pixels)
+		//find min and max of each band
+		forEachBand( rowsPerBand, (worker, band, from, to) -> {
+			bandMin[band] = 255 ; //set as the max possible, update with each value lower
+			bandMax[band] =   0 ; //set as the min possible, update with each value larger
+			kernels.minMax( pixels, from, to, bandMin, bandMax, band );
+		});
+		//and reduce the band results to the slice min and max
+		int thisSliceMin = 255 ;
+		int thisSliceMax =   0 ;
+		for( int band=0; band<bandMin.length; band++ ) {
+			if( bandMin[band] < thisSliceMin ) thisSliceMin = bandMin[band] ;
+			if( bandMax[band] > thisSliceMax ) thisSliceMax = bandMax[band] ;
+		}
+		return new SliceStats( thisSliceMin, thisSliceMax );
+	} //end private SliceStats stats(byte[] pixels)
+  //-----------------------------------------------------
+
+
+	// 256 bin histogram of a GRAY8 slice, counted per worker thread then summed
+	private int[] histogram8( final byte[] pixels ) {
+		final int     rowsPerBand = rowsPerBand( 1 );
+		final int[][] partial     = new int[ workerCount(rowsPerBand) ][] ;
+		forEachBand( rowsPerBand, (worker, band, from, to) -> {
+			if( partial[worker] == null ) partial[worker] = new int[256];
+			int[] histogram = partial[worker];
+			for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+				histogram[ pixels[pixelPos] & 0xff ]++ ;
+			}  //end for histogram scan
+		});
+		return sum( partial );
+	} //end private int[] histogram8(byte[] pixels)
+  //-----------------------------------------------------
+
+
+	// Sum the per-worker partial histograms into the first one there is. Workers that got no band
+	// are null, and that can be any of them, worker 0 included, when the others start first and
+	// take every band; one always gets a band, so there is a first.
+	private static int[] sum( int[][] partial ) {
+		int first = 0;
+		while( partial[first] == null ) first++;
+		int[] histogram = partial[first];
+		for( int worker=first+1; worker<partial.length; worker++ ) {
+			if( partial[worker] == null ) continue;
+			for( int bin=0; bin<histogram.length; bin++ ) histogram[bin] += partial[worker][bin] ;
+		}
+		return histogram;
+	} //end private static int[] sum(int[][] partial)
+  //-----------------------------------------------------
+
+
+	// GRAY8 second pass, to re-level the values
+	private void remap(final byte[] pixels, final byte[] levelled, SliceStats stats) {
+		//there are only 256 possible input values, so do the double arithmetic once per value
+		//into a lookup table rather than once per pixel
+		final byte[] lut = levelLut8( (int)stats.low(0,saturated), (int)stats.high(0,saturated) );
+		forEachBand( rowsPerBand(1), (worker, band, from, to) -> {
+			for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+				levelled[pixelPos] = lut[ pixels[pixelPos] & 0xff ] ;
+			}  //end for set re-level
+		});
+	} //end private void remap(byte[] pixels, byte[] levelled, SliceStats stats)
+  //-----------------------------------------------------
+
+
+	// 256 entry table mapping each 8-bit value v to round( (v-min)*255/(max-min) ),
+	// saturating at 0 and 255 for values outside [min,max]
+	static byte[] levelLut8( int thisSliceMin, int thisSliceMax ) {
+		short[] ramp = new short[256];
+		levelRamp( thisSliceMin, thisSliceMax, 255, ramp );
+		byte[] lut = new byte[256];
+		for( int value=thisSliceMin; value<=thisSliceMax; value++ ) lut[value] = (byte)ramp[value] ;
+		Arrays.fill( lut, thisSliceMax+1, 256, (byte)255 );
+		return lut;
+	} //end static byte[] levelLut8(int thisSliceMin, int thisSliceMax)
+  //-----------------------------------------------------
+
+
+	// Fill lut[min..max] with round( (v-min)*top/(max-min) ), exactly as the double expression
+	//     (int)Math.round( ( v -(double)min )*( (double)top/( (double)max - (double)min ) ) )
+	// would, but in integer arithmetic.
+	// With n = v-min and d = max-min, round(n*top/d) = floor( (2*n*top + d) / (2*d) ), and stepping n
+	// up by one adds 2*top to the numerator, so the quotient and remainder can be carried from one
+	// entry to the next with adds and one compare instead of a double multiply and Math.round.
+	// The double expression only departs from the exact rational result at an exact tie
+	// (remainder zero), where the rounding error of the gradient can tip it either way, so those
+	// few entries are evaluated the old way to stay bit-exact.
+	static void levelRamp( int thisSliceMin, int thisSliceMax, int top, short[] lut ) {
+		int range = thisSliceMax - thisSliceMin ;
+		lut[thisSliceMin] = 0 ;
+		if( range <= 0 ) return;
+		double gradient = (double)( (double)top / ( (double)thisSliceMax - (double)thisSliceMin ) );
+		long divisor       = 2L*range ;
+		long stepQuotient  = 2L*top / divisor ;
+		long stepRemainder = 2L*top % divisor ;
+		long quotient      = 0 ;
+		long remainder     = range ; //n=0: (0 + d) / 2d is 0 remainder d
+		for( int n=1; n<=range; n++ ) {
+			quotient  += stepQuotient ;
+			remainder += stepRemainder ;
+			if( remainder >= divisor ) {
+				remainder -= divisor ;
+				quotient++ ;
+			}
+			if( remainder != 0 ) lut[thisSliceMin+n] = (short)quotient ;
+			else                 lut[thisSliceMin+n] = (short)( (int)Math.round( n*gradient ) );
+		}
+	} //end static void levelRamp(int thisSliceMin, int thisSliceMax, int top, short[] lut)
   //-----------------------------------------------------
 
 
 	// processing of GRAY16 images
 	public void process(short[] pixels) {
+		process( pixels, pixels );
+	} //end public void process(short[] pixels)
+  //-----------------------------------------------------
+
+
+	// levels pixels into levelled, which may be pixels itself
+	public void process(short[] pixels, short[] levelled) {
+		remap( pixels, levelled, stats(pixels) );
+	} //end public void process(short[] pixels, short[] levelled)
+  //-----------------------------------------------------
+
+
+	// GRAY16 first pass, building the full 16-bit histogram from which min and max are read off
+	private SliceStats stats(short[] pixels) {
 		//Java short is 16 bit signed, so -32,768 to 32,767
 		//Java int is 32 bit, signed -2,147,483,648 to 2,147,483,647
-		//so we can safely promote to int type for tested pixed value
+		//so we can safely promote to int type for tested pixed value,
+		//using & 0xffff to treat it as unsigned 0 to 65535, as for & 0xff with bytes
 		
-		int thisSliceMin = 65535 ; //set as the max possible, update with each value lower
-		int thisSliceMax =     0 ; //set as the min possible, update with each value larger
-		int testedPixelValue ;
-		double gradient ;
-		
-		//first pass to find min and max
-		for( int pixelPos=0; pixelPos<(width*height); pixelPos++ ) {
-			testedPixelValue = pixels[pixelPos] & 0xff ;
-			if( testedPixelValue < thisSliceMin ) thisSliceMin = testedPixelValue ;
-			if( testedPixelValue > thisSliceMax ) thisSliceMax = testedPixelValue ;
-		}  //end for min-max scan
-		//then second pass to re-level the values
-		gradient = (double)( (double)65535.0 / ( (double)thisSliceMax - (double)thisSliceMin ) );
-		for( int pixelPos=0; pixelPos<(width*height); pixelPos++ ) {
-			pixels[pixelPos] = (short)( (int)Math.round( ( (pixels[pixelPos] & 0xff) -(double)thisSliceMin )*gradient ) );
-		}  //end for set re-level
-	} //end public void process(short[] pixels)
+		return SliceStats.fromHistograms( histogram16(pixels) );
+	} //end private SliceStats stats(short[] pixels)
+  //-----------------------------------------------------
+
+
+	// GRAY16 second pass, to re-level the values by lookup into a table built once for this slice
+	private void remap(final short[] pixels, final short[] levelled, SliceStats stats) {
+		final short[] lut = levelLut16( (int)stats.low(0,saturated), (int)stats.high(0,saturated), white16(imageBits) );
+		forEachBand( rowsPerBand(2), (worker, band, from, to) -> {
+			for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+				levelled[pixelPos] = lut[ pixels[pixelPos] & 0xffff ] ;
+			}  //end for set re-level
+		});
+	} //end private void remap(short[] pixels, short[] levelled, SliceStats stats)
+  //-----------------------------------------------------
+
+
+	// 65536 bin histogram of a GRAY16 slice, counted per worker thread then summed
+	private int[] histogram16( final short[] pixels ) {
+		final int     rowsPerBand = rowsPerBand( 2 );
+		final int[][] partial     = new int[ workerCount(rowsPerBand) ][] ;
+		forEachBand( rowsPerBand, (worker, band, from, to) -> {
+			if( partial[worker] == null ) partial[worker] = new int[65536];
+			int[] histogram = partial[worker];
+			for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+				histogram[ pixels[pixelPos] & 0xffff ]++ ;
+			}  //end for histogram scan
+		});
+		return sum( partial );
+	} //end private int[] histogram16(short[] pixels)
+  //-----------------------------------------------------
+
+
+	// 65536 entry table mapping each 16-bit value v to round( (v-min)*white/(max-min) ),
+	// saturating at 0 below min and at white above max; white is 65535, or 4095 for 12-bit data
+	static short[] levelLut16( int thisSliceMin, int thisSliceMax, int white ) {
+		short[] lut = new short[65536];
+		levelRamp( thisSliceMin, thisSliceMax, white, lut );
+		Arrays.fill( lut, thisSliceMax+1, 65536, (short)white );
+		return lut;
+	} //end static short[] levelLut16(int thisSliceMin, int thisSliceMax, int white)
+  //-----------------------------------------------------
+
+
+	// The GRAY16 value levelled to white: the top of the bit depth set, else of the image's own
+	private int white16( int imageBits ) {
+		int bits = bits16 > 0 ? bits16 : imageBits;
+		return ( 1 << bits ) - 1;
+	} //end private int white16(int imageBits)
+  //-----------------------------------------------------
+
+
+	// Significant bits of a GRAY16 image: a bit depth written by the acquisition software, else
+	// ImageJ's "16-bit range" option when it is set (Edit>Options>Appearance), else all 16. The
+	// image's own metadata comes first, being about this image where the option is global; the
+	// bit depth setting of the plugin overrides both, see white16(). Tiff files of 12-bit cameras
+	// are stored as 16-bit and levelling them to 65535 would leave them out of the range the rest
+	// of the pipeline expects.
+	static int significantBits( ImagePlus image ) {
+		int bits ;
+		if( image != null ) {
+			for( String key : BIT_DEPTH_KEYS ) {
+				bits = bits( image.getProp(key) );                     //setProp(), Image>Properties
+				if( bits == 0 ) bits = bits( image.getProperty(key) ); //setProperty()
+				if( bits > 0 ) return bits;
+			}
+			bits = bitsIn( image.getInfoProperty() );
+			if( bits > 0 ) return bits;
+		}
+		bits = ImagePlus.getDefault16bitRange();
+		return bits > 0 && bits <= 16 ? bits : 16;
+	} //end static int significantBits(ImagePlus image)
+
+
+	// A property value as significant bits, or 0 when it is not a number from 1 to 16
+	private static int bits( Object value ) {
+		if( value == null ) return 0;
+		int bits ;
+		try {
+			bits = value instanceof Number ? ((Number)value).intValue() : Integer.parseInt( value.toString().trim() );
+		} catch( NumberFormatException e ) {
+			return 0;
+		}
+		return bits > 0 && bits <= 16 ? bits : 0;
+	} //end private static int bits(Object value)
+
+
+	// The first bit depth in the info text: "BitDepth: 12" or "BitDepth = 12" lines, Micro-Manager's
+	// JSON "BitDepth": 12, or OME-XML's SignificantBits="12"; 0 when there is none
+	static int bitsIn( String info ) {
+		if( info == null ) return 0;
+		Matcher matcher = BIT_DEPTH_TEXT.matcher( info );
+		while( matcher.find() ) {
+			int bits = bits( matcher.group(2) );
+			if( bits > 0 ) return bits;
+		}
+		return 0;
+	} //end static int bitsIn(String info)
+
+	private static final String[] BIT_DEPTH_KEYS = { "BitDepth", "SignificantBits", "BitsPerPixel" };
+	private static final Pattern  BIT_DEPTH_TEXT = Pattern.compile( "\\b(BitDepth|SignificantBits|BitsPerPixel)\"?\\s*[:=]\\s*\"?(\\d+)" );
   //-----------------------------------------------------
 
 
 	// processing of GRAY32 images	
 	public void process( float[] pixels ) {
+		process( pixels, pixels );
+	} //end public void process(float[] pixels)
+  //-----------------------------------------------------
+
+
+	// levels pixels into levelled, which may be pixels itself
+	public void process( float[] pixels, float[] levelled ) {
+		remap( pixels, levelled, stats(pixels) );
+	} //end public void process(float[] pixels, float[] levelled)
+  //-----------------------------------------------------
+
+
+	// GRAY32 first pass, to find min and max
+	private SliceStats stats( final float[] pixels ) {
 		//IJ.log("public void process GREY32");
 		//Java int is 32 bit, signed -2,147,483,648 to 2,147,483,647
 		//Java long is 64 bit, signed -9,223,372,036,854,775,808 to 9,223,372,036,854,775,807
@@ -158,51 +1213,226 @@ public class AutoLevel_Slice implements PlugInFilter {
 		//float data type is 32 bit
 		//With a float data type, we don't need to cast
 		
-		float thisSliceMin = (float)1.0 ; //set as the max possible, update with each value lower
-		float thisSliceMax = (float)0.0 ; //set as the min possible, update with each value larger
-		float testedPixelValue ;
-		float gradient ;
+		//float values are not bounded to 0.0 to 1.0 (and may be NaN or infinite), so min and max
+		//are seeded from the data, starting each worker at +/-infinity which any finite value beats
+		final int     rowsPerBand = rowsPerBand( 4 );
+		final int     nWorkers    = workerCount( rowsPerBand );
+		final float[] workerMin   = new float[ nWorkers ];
+		final float[] workerMax   = new float[ nWorkers ];
+		Arrays.fill( workerMin, Float.POSITIVE_INFINITY );
+		Arrays.fill( workerMax, Float.NEGATIVE_INFINITY );
+		//saturation also needs a histogram, counted per worker in the same pass as min and max
+		final int[][] partial     = saturated > 0 ? new int[ nWorkers ][] : null ;
 		
-		//first pass to find min and max
-		for( int pixelPos=0; pixelPos<(width*height); pixelPos++ ) {
-			testedPixelValue = pixels[pixelPos];
-			if( testedPixelValue < thisSliceMin ) thisSliceMin = testedPixelValue ;
-			if( testedPixelValue > thisSliceMax ) thisSliceMax = testedPixelValue ;
-		}  //end for min-max scan
-		//then second pass to re-level the values
-		gradient = (float)1.0 / ( thisSliceMax - thisSliceMin ) ;
-		for( int pixelPos=0; pixelPos<(width*height); pixelPos++ ) {
-			pixels[pixelPos] = (pixels[pixelPos] - thisSliceMin )*gradient ;
-		}  //end for set re-level
-	} //end public void process(float[] pixels)
+		//each worker widens its own partial min and max over every band it takes
+		forEachBand( rowsPerBand, (worker, band, from, to) -> {
+			if( partial == null ) {
+				kernels.minMax( pixels, from, to, workerMin, workerMax, worker );
+				return;
+			}
+			float thisBandMin = workerMin[worker] ;
+			float thisBandMax = workerMax[worker] ;
+			float testedPixelValue ;
+			if( partial[worker] == null ) partial[worker] = new int[65536];
+			int[] histogram = partial[worker];
+			for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+				testedPixelValue = pixels[pixelPos];
+				if( !(Math.abs(testedPixelValue) <= Float.MAX_VALUE) ) continue; //NaN and infinity have no place in the range
+				if( testedPixelValue < thisBandMin ) thisBandMin = testedPixelValue ;
+				if( testedPixelValue > thisBandMax ) thisBandMax = testedPixelValue ;
+				histogram[ SliceStats.floatBin(testedPixelValue) ]++ ;
+			}  //end for min-max and histogram scan
+			workerMin[worker] = thisBandMin ;
+			workerMax[worker] = thisBandMax ;
+		});
+		//and merge the worker results to the slice min and max
+		float thisSliceMin = Float.POSITIVE_INFINITY ;
+		float thisSliceMax = Float.NEGATIVE_INFINITY ;
+		for( int worker=0; worker<nWorkers; worker++ ) {
+			if( workerMin[worker] < thisSliceMin ) thisSliceMin = workerMin[worker] ;
+			if( workerMax[worker] > thisSliceMax ) thisSliceMax = workerMax[worker] ;
+		}
+		if( partial == null ) return new SliceStats( thisSliceMin, thisSliceMax );
+		return new SliceStats( new double[] { thisSliceMin }, new double[] { thisSliceMax },
+		                       new long[][] { SliceStats.toLong( sum(partial) ) }, true );
+	} //end private SliceStats stats(float[] pixels)
+  //-----------------------------------------------------
+
+
+	// GRAY32 second pass, to re-level the values into the target range, by default 0.0 to 1.0,
+	// offsetting and clamping (when saturating) in the same pass as the scaling
+	private void remap( final float[] pixels, final float[] levelled, SliceStats stats ) {
+		final float sliceMin  = (float)stats.low(0,saturated) ;
+		final float sliceMax  = (float)stats.high(0,saturated) ;
+		final float targetMin = (float)targetLow() ;
+		final float targetMax = (float)targetHigh() ;
+		//a flat slice, or one with no finite values, has no range to stretch: it levels to targetMin
+		final float gradient  = sliceMax > sliceMin ? ( targetMax - targetMin ) / ( sliceMax - sliceMin ) : (float)0.0 ;
+		final float clipLow   = saturated > 0 ? Math.min( targetMin, targetMax ) : Float.NEGATIVE_INFINITY ;
+		final float clipHigh  = saturated > 0 ? Math.max( targetMin, targetMax ) : Float.POSITIVE_INFINITY ;
+		if( wide( stats, sliceMin, sliceMax ) || Math.abs( (double)targetMax - targetMin ) > Float.MAX_VALUE ) {
+			final double wideGradient = sliceMax > sliceMin ? ( (double)targetMax - targetMin ) / ( (double)sliceMax - sliceMin ) : 0.0 ;
+			forEachBand( rowsPerBand(4), (worker, band, from, to) ->
+				kernels.remapWide( pixels, levelled, from, to, sliceMin, wideGradient, targetMin, clipLow, clipHigh )
+			);
+			return;
+		}
+		forEachBand( rowsPerBand(4), (worker, band, from, to) ->
+			kernels.remap( pixels, levelled, from, to, sliceMin, gradient, targetMin, clipLow, clipHigh )
+		);
+	} //end private void remap(float[] pixels, float[] levelled, SliceStats stats)
+  //-----------------------------------------------------
+
+
+	// True when a GRAY32 remap from sliceMin to sliceMax would overflow in float: the values of
+	// the slice, as far as its statistics saw them, lie further than Float.MAX_VALUE from
+	// sliceMin, or the range itself is wider than that, e.g. -3e38 to 3e38
+	private static boolean wide( SliceStats stats, float sliceMin, float sliceMax ) {
+		return (double)sliceMax - sliceMin > Float.MAX_VALUE
+		    || stats.max[0] - sliceMin > Float.MAX_VALUE
+		    || sliceMin - stats.min[0] > Float.MAX_VALUE ;
+	} //end private static boolean wide(SliceStats stats, float sliceMin, float sliceMax)
+  //-----------------------------------------------------
+
+
+	// GRAY16 or GRAY32 second pass straight into an 8-bit slice, so levelling then converting
+	// reads and writes each pixel once, with no intermediate 16 or 32-bit copy. 16-bit values go
+	// through a lookup table as in remap(short[]), 32-bit ones are scaled to 0 to 255 and rounded.
+	private void remapTo8( final Object pixels, final byte[] levelled, SliceStats stats ) {
+		if( type == ImagePlus.GRAY16 ) {
+			final short[] source = (short[])pixels ;
+			final short[] ramp   = levelLut16( (int)stats.low(0,saturated), (int)stats.high(0,saturated), 255 );
+			final byte[]  lut    = new byte[65536];
+			for( int value=0; value<65536; value++ ) lut[value] = (byte)ramp[value] ;
+			forEachBand( rowsPerBand(2), (worker, band, from, to) -> {
+				for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+					levelled[pixelPos] = lut[ source[pixelPos] & 0xffff ] ;
+				}  //end for set re-level
+			});
+		} else if( type == ImagePlus.GRAY32 ) {
+			final float[] source   = (float[])pixels ;
+			final float   sliceMin = (float)stats.low(0,saturated) ;
+			final float   sliceMax = (float)stats.high(0,saturated) ;
+			final float   gradient = sliceMax > sliceMin ? (float)255.0 / ( sliceMax - sliceMin ) : (float)0.0 ;
+			if( wide( stats, sliceMin, sliceMax ) ) {
+				final double wideGradient = sliceMax > sliceMin ? 255.0 / ( (double)sliceMax - sliceMin ) : 0.0 ;
+				forEachBand( rowsPerBand(4), (worker, band, from, to) ->
+					kernels.remapWide( source, levelled, from, to, sliceMin, wideGradient )
+				);
+				return;
+			}
+			forEachBand( rowsPerBand(4), (worker, band, from, to) ->
+				kernels.remap( source, levelled, from, to, sliceMin, gradient )
+			);
+		} else {
+			throw new RuntimeException("not supported");
+		}
+	} //end private void remapTo8(Object pixels, byte[] levelled, SliceStats stats)
   //-----------------------------------------------------
 
 
 	// processing of COLOR_RGB images
 	public void process(int[] pixels ) {
 		//IJ.log("public void process RGB");
-		//Red   [ 255,  0 ,  0  ] -> Cyan    [  0 , 255, 255 ];
-		//Green [  0 , 255,  0  ] -> Magenta [ 255,  0 , 255 ];
-		//Blue  [  0 ,  0 , 255 ] -> Yellow  [ 255, 255,  0  ];
-		//Black [  0 ,  0 ,  0  ] -> White   [ 255, 255, 255 ];
-		//White [ 255, 255, 255 ] -> Black   [  0 ,  0 ,  0  ];
-		
-		ColorProcessor cp = new ColorProcessor(width, height, pixels);
-		
-		byte[] R = new byte[ width*height ];
-		byte[] G = new byte[ width*height ];
-		byte[] B = new byte[ width*height ];
-		
-		cp.getRGB( R, G, B);
+		//Each int is packed 0xAARRGGBB, so each channel is (pixel >> shift) & 0xff
+		//with shift 16 for red, 8 for green and 0 for blue.
+		//Each channel is levelled independently, exactly as process(byte[]) would level it,
+		//but working on the packed ints directly rather than unpacking into three byte arrays.
+		process( pixels, pixels );
+	} //end public void process(int[] pixels)
+  //-----------------------------------------------------
 
-		//call the process( byte pixels ) method for each channel
-		process( R );
-		process( G );
-		process( B );
+
+	// levels pixels into levelled, which may be pixels itself
+	public void process(int[] pixels, int[] levelled ) {
+		remap( pixels, levelled, stats(pixels) );
+	} //end public void process(int[] pixels, int[] levelled)
+  //-----------------------------------------------------
+
+
+	// COLOR_RGB first pass, to find min and max of each channel
+	private SliceStats stats(final int[] pixels ) {
+		if( saturated > 0 ) return SliceStats.fromHistograms( histogramRGB(pixels) );
+
+		final int   rowsPerBand = rowsPerBand( 4 );
+		final int[] bandMin     = new int[ 3*bandCount(rowsPerBand) ];
+		final int[] bandMax     = new int[ 3*bandCount(rowsPerBand) ];
 		
-		cp.setRGB( R, G, B );
+		//find min and max of each channel in each band
+		forEachBand( rowsPerBand, (worker, band, from, to) -> {
+			int minR = 255, minG = 255, minB = 255 ; //set as the max possible, update with each value lower
+			int maxR =   0, maxG =   0, maxB =   0 ; //set as the min possible, update with each value larger
+			int testedPixelValue ;
+			for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+				testedPixelValue = pixels[pixelPos] ;
+				int r = (testedPixelValue >> 16) & 0xff ;
+				int g = (testedPixelValue >>  8) & 0xff ;
+				int b =  testedPixelValue        & 0xff ;
+				if( r < minR ) minR = r ;
+				if( r > maxR ) maxR = r ;
+				if( g < minG ) minG = g ;
+				if( g > maxG ) maxG = g ;
+				if( b < minB ) minB = b ;
+				if( b > maxB ) maxB = b ;
+			}  //end for min-max scan
+			bandMin[3*band] = minR ; bandMin[3*band+1] = minG ; bandMin[3*band+2] = minB ;
+			bandMax[3*band] = maxR ; bandMax[3*band+1] = maxG ; bandMax[3*band+2] = maxB ;
+		});
+		//and reduce the band results to the slice min and max of each channel
+		double[] thisSliceMin = { 255, 255, 255 } ;
+		double[] thisSliceMax = {   0,   0,   0 } ;
+		for( int i=0; i<bandMin.length; i++ ) {
+			if( bandMin[i] < thisSliceMin[i%3] ) thisSliceMin[i%3] = bandMin[i] ;
+			if( bandMax[i] > thisSliceMax[i%3] ) thisSliceMax[i%3] = bandMax[i] ;
+		}
+		return new SliceStats( thisSliceMin, thisSliceMax );
+	} //end private SliceStats stats(int[] pixels)
+  //-----------------------------------------------------
 
-	} //end public void process(int[] pixels)
+
+	// red, green and blue 256 bin histograms of a COLOR_RGB slice, counted per worker thread then summed
+	private int[][] histogramRGB( final int[] pixels ) {
+		final int     rowsPerBand = rowsPerBand( 4 );
+		final int[][] partialR    = new int[ workerCount(rowsPerBand) ][] ;
+		final int[][] partialG    = new int[ workerCount(rowsPerBand) ][] ;
+		final int[][] partialB    = new int[ workerCount(rowsPerBand) ][] ;
+		forEachBand( rowsPerBand, (worker, band, from, to) -> {
+			if( partialR[worker] == null ) {
+				partialR[worker] = new int[256];
+				partialG[worker] = new int[256];
+				partialB[worker] = new int[256];
+			}
+			int[] histogramR = partialR[worker], histogramG = partialG[worker], histogramB = partialB[worker];
+			int c ;
+			for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+				c = pixels[pixelPos] ;
+				histogramR[ (c >> 16) & 0xff ]++ ;
+				histogramG[ (c >>  8) & 0xff ]++ ;
+				histogramB[  c        & 0xff ]++ ;
+			}  //end for histogram scan
+		});
+		return new int[][] { sum(partialR), sum(partialG), sum(partialB) };
+	} //end private int[][] histogramRGB(int[] pixels)
+  //-----------------------------------------------------
+
+
+	// COLOR_RGB second pass, to re-level all three channels at once through per-channel tables,
+	// setting alpha opaque as ColorProcessor.setRGB does
+	private void remap(final int[] pixels, final int[] levelled, SliceStats stats ) {
+		final byte[] lutR = levelLut8( (int)stats.low(0,saturated), (int)stats.high(0,saturated) );
+		final byte[] lutG = levelLut8( (int)stats.low(1,saturated), (int)stats.high(1,saturated) );
+		final byte[] lutB = levelLut8( (int)stats.low(2,saturated), (int)stats.high(2,saturated) );
+		forEachBand( rowsPerBand(4), (worker, band, from, to) -> {
+			int c ;
+			for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+				c = pixels[pixelPos] ;
+				levelled[pixelPos] = 0xff000000
+				                 | (lutR[ (c >> 16) & 0xff ] & 0xff) << 16
+				                 | (lutG[ (c >>  8) & 0xff ] & 0xff) <<  8
+				                 | (lutB[  c        & 0xff ] & 0xff) ;
+			}  //end for set re-level
+		});
+	} //end private void remap(int[] pixels, int[] levelled, SliceStats stats)
   //-----------------------------------------------------
 
 
@@ -211,6 +1441,286 @@ public class AutoLevel_Slice implements PlugInFilter {
 /*=================================================================================*/
 
 
+	// Ask for the options, unless running headless, in which case the current values are kept
+	private boolean showDialog() {
+		if( GraphicsEnvironment.isHeadless() ) return true;
+		GenericDialog gd = new GenericDialog( "AutoLevel Slice" );
+		gd.addChoice( "Statistics from", labels(), grouping.toString() );
+		gd.addNumericField( "Saturated pixels at each end", saturated, 2, 5, "%" );
+		boolean float32 = image != null && image.getType() == ImagePlus.GRAY32;
+		if( float32 ) {
+			gd.addNumericField( "Target minimum", targetLow(),  4, 8, "" );
+			gd.addNumericField( "Target maximum", targetHigh(), 4, 8, "" );
+		}
+		boolean gray16 = image != null && image.getType() == ImagePlus.GRAY16;
+		String[] depths = { "Auto ("+significantBits(image)+"-bit)", "8-bit", "10-bit", "12-bit", "14-bit", "15-bit", "16-bit" };
+		if( gray16 ) gd.addChoice( "Target range", depths, bits16 > 0 ? bits16+"-bit" : depths[0] );
+		gd.addCheckbox( "Output to new image (keep original)", newImage );
+		if( gray16 || float32 ) gd.addCheckbox( "Convert to 8-bit", to8bit );
+		Roi roi = image != null ? image.getRoi() : null;
+		boolean selection = roi != null && roi.isArea();
+		if( selection ) gd.addCheckbox( "Statistics from selection only", true );
+		gd.addNumericField( "Sampled fraction of pixels", sampler != null ? sampler.fraction() : 1.0, 3, 6, "(1 for all)" );
+		gd.addCheckbox( "Jittered sampling", sampler != null && sampler.jittered() );
+		gd.addCheckbox( "Sample display range previews only", fullScanToCommit );
+		gd.addCheckbox( "Display range only (pixels unchanged)", displayOnly );
+		gd.addCheckbox( "Cache slice statistics", cacheStats );
+		gd.addCheckbox( "Keep statistics in a sidecar file", sidecar );
+		gd.addCheckbox( "Log timing summary", logTiming );
+		gd.showDialog();
+		if( gd.wasCanceled() ) return false;
+		grouping   = Grouping.values()[ gd.getNextChoiceIndex() ];
+		saturated  = gd.getNextNumber();
+		if( float32 ) {
+			targetMin = gd.getNextNumber();
+			targetMax = gd.getNextNumber();
+		}
+		if( gray16 ) {
+			String depth = gd.getNextChoice();
+			bits16 = depth.startsWith("Auto") ? 0 : Integer.parseInt( depth.substring( 0, depth.indexOf('-') ) );
+		}
+		newImage   = gd.getNextBoolean();
+		if( gray16 || float32 ) to8bit = gd.getNextBoolean();
+		if( selection ) region = gd.getNextBoolean() ? StatsRegion.of( roi ) : null;
+		double fraction = gd.getNextNumber();
+		boolean jittered = gd.getNextBoolean();
+		sampler    = fraction > 0 && fraction < 1 ? new StatsSampler( fraction, jittered ) : null;
+		fullScanToCommit = gd.getNextBoolean();
+		displayOnly = gd.getNextBoolean();
+		cacheStats = gd.getNextBoolean();
+		sidecar    = gd.getNextBoolean();
+		logTiming  = gd.getNextBoolean();
+		if( !validSaturated(saturated) ) {
+			IJ.error( "AutoLevel Slice", "Saturated pixels must be at least 0% and below 50%." );
+			return false;
+		}
+		return true;
+	} //end private boolean showDialog()
+  //-----------------------------------------------------
+
+
+	private static String[] labels() {
+		Grouping[] groupings = Grouping.values();
+		String[] labels = new String[ groupings.length ];
+		for( int g=0; g<groupings.length; g++ ) labels[g] = groupings[g].toString();
+		return labels;
+	} //end private static String[] labels()
+  //-----------------------------------------------------
+
+
+	/**
+	 * Level every slice from the min and max of the whole stack, rather than of each slice,
+	 * so brightness does not flicker from slice to slice.
+	 *
+	 * @param wholeStack true to share one mapping across the stack
+	 */
+	public void setWholeStack( boolean wholeStack ) {
+		this.grouping = wholeStack ? Grouping.STACK : Grouping.SLICE;
+	} //end public void setWholeStack(boolean wholeStack)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Choose which planes of a hyperstack share one mapping, for example every z slice of a
+	 * channel volume, or every frame of a channel. {@link Grouping#SLICE} levels each plane
+	 * on its own and {@link Grouping#STACK} is the same as {@link #setWholeStack(boolean)}.
+	 *
+	 * @param grouping the planes levelled together
+	 */
+	public void setGrouping( Grouping grouping ) {
+		this.grouping = grouping;
+	} //end public void setGrouping(Grouping grouping)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Let the darkest and brightest saturated percent of pixels clip to black and white,
+	 * so a few hot or dead pixels do not set the levelling range. The percentiles are read
+	 * from a histogram built in the same pass that finds min and max.
+	 *
+	 * At 50% or more the low percentile would pass the high one and the ramp become a threshold,
+	 * so, as for Process&gt;Enhance Contrast, such values are rejected.
+	 *
+	 * @param saturated percent of pixels to saturate at each end, 0 for plain min and max, below 50
+	 */
+	public void setSaturated( double saturated ) {
+		if( !validSaturated(saturated) ) throw new IllegalArgumentException( "saturated "+saturated+"% is not at least 0 and below 50" );
+		this.saturated = saturated;
+	} //end public void setSaturated(double saturated)
+  //-----------------------------------------------------
+
+
+	private static boolean validSaturated( double saturated ) {
+		return saturated >= 0 && saturated < 50; //also false for NaN
+	} //end private static boolean validSaturated(double saturated)
+  //-----------------------------------------------------
+
+
+	/**
+	 * The values GRAY32 images are levelled to, rather than 0.0 to 1.0. The scaling, offset
+	 * and, when saturating, the clamp to the range are all done in the one remap pass.
+	 *
+	 * @param targetMin the value the darkest pixels are levelled to
+	 * @param targetMax the value the brightest pixels are levelled to
+	 */
+	public void setTargetRange( double targetMin, double targetMax ) {
+		this.targetMin = targetMin;
+		this.targetMax = targetMax;
+	} //end public void setTargetRange(double targetMin, double targetMax)
+  //-----------------------------------------------------
+
+
+	/**
+	 * The bit depth GRAY16 images are levelled to, so 12-bit camera data levels to 0 to 4095
+	 * rather than 65535. The lookup table is built to that white, so it costs nothing per pixel.
+	 *
+	 * @param bits significant bits, 1 to 16, or 0 to take them from the image
+	 */
+	public void setTargetBitDepth( int bits ) {
+		if( bits < 0 || bits > 16 ) throw new IllegalArgumentException( "bit depth "+bits+" is not 0 to 16" );
+		this.bits16 = bits;
+	} //end public void setTargetBitDepth(int bits)
+  //-----------------------------------------------------
+
+
+	/**
+	 * When run on an in-memory image, level into a new image and show it rather than changing
+	 * the pixels in place. Virtual stacks are always written to a new file.
+	 *
+	 * @param newImage true to keep the original image untouched
+	 */
+	public void setNewImage( boolean newImage ) {
+		this.newImage = newImage;
+	} //end public void setNewImage(boolean newImage)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Level 16 and 32-bit images straight into 8-bit slices, in the same pass, instead of
+	 * levelling and then converting with Image&gt;Type&gt;8-bit. In place the 8-bit stack replaces
+	 * the original one; with {@link #setNewImage(boolean)} or a virtual stack the output is 8-bit.
+	 * 8-bit and RGB images are levelled as usual.
+	 *
+	 * @param to8bit true to write 8-bit output
+	 */
+	public void setConvertTo8Bit( boolean to8bit ) {
+		this.to8bit = to8bit;
+	} //end public void setConvertTo8Bit(boolean to8bit)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Take the levelling statistics only from inside a selection, for example to leave a bright
+	 * slide label out of the range, while still levelling every pixel of every slice. The first
+	 * pass visits only the selection's bounding rectangle, and only the pixels of its mask.
+	 *
+	 * @param roi an area selection, or null to take the statistics from the whole frame
+	 */
+	public void setStatsRegion( Roi roi ) {
+		this.region = StatsRegion.of( roi );
+	} //end public void setStatsRegion(Roi roi)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Take the levelling statistics only from the pixels set in a binary mask, as
+	 * {@link #setStatsRegion(Roi)} does for a selection.
+	 *
+	 * @param mask a mask the size of the image, non-zero where statistics are taken, or null for the whole frame
+	 */
+	public void setStatsMask( ImageProcessor mask ) {
+		this.region = mask == null ? null : StatsRegion.ofMask( mask );
+	} //end public void setStatsMask(ImageProcessor mask)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Take the statistics from a fraction of the pixels of each slice rather than all of them,
+	 * so levelling the display range of multi-gigapixel slices previews in milliseconds. The
+	 * sampled min and max can only be inside the true ones. Samples are one per run of 1/fraction
+	 * pixels, at a fixed stride or jittered by the golden ratio sequence.
+	 * By default only display range previews are sampled, see {@link #setFullScanToCommit(boolean)}.
+	 *
+	 * @param fraction fraction of pixels sampled, 1 for all of them
+	 * @param jittered true for jittered rather than strided samples
+	 */
+	public void setSampling( double fraction, boolean jittered ) {
+		if( !(fraction > 0) ) throw new IllegalArgumentException( "sampled fraction "+fraction+" is not above 0" );
+		this.sampler = fraction < 1 ? new StatsSampler( fraction, jittered ) : null;
+	} //end public void setSampling(double fraction, boolean jittered)
+  //-----------------------------------------------------
+
+
+	/**
+	 * With sampling set, whether levelling pixels still scans every pixel, so only display range
+	 * previews are approximate and committing to changed pixels gives the exact result. Turn off
+	 * to level pixels from the samples as well.
+	 * <p>
+	 * Display ranges set by {@link #processDisplayRange(ImagePlus)} are never refined: they stay
+	 * those of the samples until the display range is levelled again with sampling off, or the
+	 * pixels are levelled, which scans every pixel.
+	 * </p>
+	 *
+	 * @param fullScanToCommit true to sample display range previews only
+	 */
+	public void setFullScanToCommit( boolean fullScanToCommit ) {
+		this.fullScanToCommit = fullScanToCommit;
+	} //end public void setFullScanToCommit(boolean fullScanToCommit)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Level only the display range of each slice as it is shown, leaving the pixels untouched.
+	 * Grayscale images only.
+	 *
+	 * @param displayOnly true to set display ranges instead of changing pixels
+	 */
+	public void setDisplayOnly( boolean displayOnly ) {
+		this.displayOnly = displayOnly;
+	} //end public void setDisplayOnly(boolean displayOnly)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Keep the statistics of every slice levelled, keyed by a hash of its pixels, in a cache
+	 * shared by every run in this JVM, so levelling unchanged slices again (with other options,
+	 * say) skips the first pass. Statistics collected without a histogram are rescanned when a
+	 * saturated range needs one.
+	 *
+	 * @param cacheStats true to look up and cache slice statistics
+	 */
+	public void setCacheStats( boolean cacheStats ) {
+		this.cacheStats = cacheStats;
+	} //end public void setCacheStats(boolean cacheStats)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Also save the statistics of an image opened from a file to a sidecar file next to it,
+	 * <i>name</i>.levels, and read them back on later runs, so the cache survives restarts.
+	 *
+	 * @param sidecar true to read and write the sidecar file
+	 */
+	public void setSidecar( boolean sidecar ) {
+		this.sidecar = sidecar;
+	} //end public void setSidecar(boolean sidecar)
+  //-----------------------------------------------------
+
+
+	/**
+	 * Log a one line summary of each run to the ImageJ log: slices, megapixels per second,
+	 * median and 99th percentile slice time and the share of read, statistics and remap time.
+	 * Timings are always recorded, and their JVM wide totals are published over JMX as
+	 * <code>com.pthci.imagej:type=AutoLevel_Slice</code>, whether or not they are logged.
+	 *
+	 * @param logTiming true to log the timing summary of each run
+	 */
+	public void setLogTiming( boolean logTiming ) {
+		this.logTiming = logTiming;
+	} //end public void setLogTiming(boolean logTiming)
+  //-----------------------------------------------------
+
+
 	public void showAbout() {
 		IJ.showMessage("AutoLevel Slice",
 			"Set each slice scaled 0 to 255 (8bit example)"
@@ -0,0 +1,103 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/**
+ * Levels a stack on screen only, by giving each slice its own display range when it is shown.
+ * <p>
+ * The range of every slice is found once, up front, and cached here, so switching slices
+ * afterwards is a lookup and a {@link ImagePlus#setDisplayRange(double, double)}, with the
+ * pixel data never touched. Listens for updates of its image until that image is closed, or
+ * until display ranges are levelled again, when the new ranges replace these.
+ * </p>
+ */
+class DisplayRanges implements ImageListener {
+	// the ranges installed on each open image, at most one set per image
+	private static final Map<ImagePlus,DisplayRanges> INSTALLED = new WeakHashMap<>();
+
+	private final ImagePlus image ;
+	private final double[]  low   ; //display range of each slice, indexed by slice number
+	private final double[]  high  ;
+	private int             shown ; //slice whose range is currently applied, 0 for none
+
+
+	DisplayRanges( ImagePlus image, double[] low, double[] high ) {
+		this.image = image;
+		this.low   = low;
+		this.high  = high;
+	} //end DisplayRanges(ImagePlus image, double[] low, double[] high)
+	//-----------------------------------------------------
+
+
+	// Apply the range of the current slice and follow the image from now on, in place of
+	// any ranges installed on it before, which would otherwise go on applying stale ranges
+	void install() {
+		DisplayRanges previous;
+		synchronized( INSTALLED ) {
+			previous = INSTALLED.put( image, this );
+		}
+		if( previous != null ) ImagePlus.removeImageListener( previous );
+		ImagePlus.addImageListener( this );
+		apply();
+	} //end void install()
+	//-----------------------------------------------------
+
+
+	// The ranges installed on image, or null if none
+	static DisplayRanges installed( ImagePlus image ) {
+		synchronized( INSTALLED ) {
+			return INSTALLED.get( image );
+		}
+	} //end static DisplayRanges installed(ImagePlus image)
+	//-----------------------------------------------------
+
+
+	// Set the display range of the slice being shown, if it has not been set already.
+	// Updating the image notifies the listeners again, which the shown check makes a no-op.
+	private void apply() {
+		int n = image.getCurrentSlice();
+		if( n == shown ) return;
+		shown = n;
+		image.setDisplayRange( low[n], high[n] );
+		image.updateAndDraw();
+	} //end private void apply()
+	//-----------------------------------------------------
+
+
+	@Override
+	public void imageOpened( ImagePlus imp ) {
+	}
+
+
+	@Override
+	public void imageClosed( ImagePlus imp ) {
+		if( imp != image ) return;
+		ImagePlus.removeImageListener( this );
+		synchronized( INSTALLED ) {
+			if( INSTALLED.get(image) == this ) INSTALLED.remove( image );
+		}
+	}
+
+
+	@Override
+	public void imageUpdated( ImagePlus imp ) {
+		if( imp == image ) apply();
+	}
+
+}  //end class DisplayRanges
@@ -0,0 +1,129 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+
+/**
+ * The innermost per-pixel loops of the GRAY8 and GRAY32 kernels, one pixel at a time.
+ * <p>
+ * On Java 17 and later the multi-release jar also carries {@code VectorKernels}, which overrides
+ * these with lane-wise versions using the jdk.incubator.vector API. {@link #INSTANCE} is that
+ * when the JVM was started with {@code --add-modules jdk.incubator.vector}, and this scalar
+ * version otherwise, or when the system property {@code autolevel.vector} is false.
+ * </p>
+ */
+class Kernels {
+	static final Kernels INSTANCE = select();
+
+
+	private static Kernels select() {
+		if( !Boolean.parseBoolean( System.getProperty("autolevel.vector", "true") ) ) return new Kernels();
+		try {
+			return (Kernels)Class.forName( "com.pthci.imagej.VectorKernels" ).getDeclaredConstructor().newInstance();
+		} catch( ReflectiveOperationException | LinkageError e ) {
+			//Java 8 to 16, or the incubator module not added: stay scalar
+			return new Kernels();
+		}
+	} //end private static Kernels select()
+	//-----------------------------------------------------
+
+
+	// Widen bandMin[band] and bandMax[band] to cover the unsigned values of pixels[from,to)
+	void minMax( byte[] pixels, int from, int to, int[] bandMin, int[] bandMax, int band ) {
+		int thisBandMin = bandMin[band] ;
+		int thisBandMax = bandMax[band] ;
+		int testedPixelValue ;
+		for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+			testedPixelValue = pixels[pixelPos] & 0xff ;
+			if( testedPixelValue < thisBandMin ) thisBandMin = testedPixelValue ;
+			if( testedPixelValue > thisBandMax ) thisBandMax = testedPixelValue ;
+		}  //end for min-max scan
+		bandMin[band] = thisBandMin ;
+		bandMax[band] = thisBandMax ;
+	} //end void minMax(byte[] pixels, int from, int to, int[] bandMin, int[] bandMax, int band)
+	//-----------------------------------------------------
+
+
+	// Widen bandMin[band] and bandMax[band] to cover the finite values of pixels[from,to),
+	// ignoring NaN and both infinities
+	void minMax( float[] pixels, int from, int to, float[] bandMin, float[] bandMax, int band ) {
+		float thisBandMin = bandMin[band] ;
+		float thisBandMax = bandMax[band] ;
+		float testedPixelValue ;
+		for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+			testedPixelValue = pixels[pixelPos];
+			if( !(Math.abs(testedPixelValue) <= Float.MAX_VALUE) ) continue; //false for NaN and infinity
+			if( testedPixelValue < thisBandMin ) thisBandMin = testedPixelValue ;
+			if( testedPixelValue > thisBandMax ) thisBandMax = testedPixelValue ;
+		}  //end for min-max scan
+		bandMin[band] = thisBandMin ;
+		bandMax[band] = thisBandMax ;
+	} //end void minMax(float[] pixels, int from, int to, float[] bandMin, float[] bandMax, int band)
+	//-----------------------------------------------------
+
+
+	// levelled[from,to) = (pixels - min)*gradient + offset, clamped to [clipLow,clipHigh], where
+	// levelled may be pixels itself. Infinite clip limits leave the values unclamped; NaN stays NaN.
+	void remap( float[] pixels, float[] levelled, int from, int to, float min, float gradient, float offset, float clipLow, float clipHigh ) {
+		float levelledValue ;
+		for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+			levelledValue = (pixels[pixelPos] - min )*gradient + offset ;
+			if     ( levelledValue < clipLow  ) levelledValue = clipLow ;
+			else if( levelledValue > clipHigh ) levelledValue = clipHigh ;
+			levelled[pixelPos] = levelledValue ;
+		}  //end for set re-level
+	} //end void remap(float[] pixels, float[] levelled, int from, int to, float min, float gradient, float offset, float clipLow, float clipHigh)
+	//-----------------------------------------------------
+
+
+	// levelled[from,to) = (pixels - min)*gradient rounded and clamped to 0 to 255, as unsigned
+	// bytes; NaN levels to 0 and the infinities to 0 and 255
+	void remap( float[] pixels, byte[] levelled, int from, int to, float min, float gradient ) {
+		float levelledValue ;
+		for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+			levelledValue = (pixels[pixelPos] - min )*gradient + (float)0.5 ;
+			if     ( levelledValue >= (float)255.0 ) levelled[pixelPos] = (byte)255 ;
+			else if( levelledValue >  (float)0.0   ) levelled[pixelPos] = (byte)(int)levelledValue ;
+			else                                     levelled[pixelPos] = 0 ; //also NaN
+		}  //end for set re-level
+	} //end void remap(float[] pixels, byte[] levelled, int from, int to, float min, float gradient)
+	//-----------------------------------------------------
+
+
+	// remap() for slices whose values lie further apart than Float.MAX_VALUE, where pixels - min
+	// overflows to infinity in float and infinity times a small gradient stays infinite, or times
+	// zero gives NaN: the same expression in double, rounded to float once at the end
+	void remapWide( float[] pixels, float[] levelled, int from, int to, double min, double gradient, double offset, float clipLow, float clipHigh ) {
+		float levelledValue ;
+		for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+			levelledValue = (float)( ( pixels[pixelPos] - min )*gradient + offset );
+			if     ( levelledValue < clipLow  ) levelledValue = clipLow ;
+			else if( levelledValue > clipHigh ) levelledValue = clipHigh ;
+			levelled[pixelPos] = levelledValue ;
+		}  //end for set re-level
+	} //end void remapWide(float[] pixels, float[] levelled, int from, int to, double min, double gradient, double offset, float clipLow, float clipHigh)
+	//-----------------------------------------------------
+
+
+	// remap() into bytes, for values further apart than Float.MAX_VALUE, in double
+	void remapWide( float[] pixels, byte[] levelled, int from, int to, double min, double gradient ) {
+		double levelledValue ;
+		for( int pixelPos=from; pixelPos<to; pixelPos++ ) {
+			levelledValue = ( pixels[pixelPos] - min )*gradient + 0.5 ;
+			if     ( levelledValue >= 255.0 ) levelled[pixelPos] = (byte)255 ;
+			else if( levelledValue >  0.0   ) levelled[pixelPos] = (byte)(int)levelledValue ;
+			else                              levelled[pixelPos] = 0 ; //also NaN
+		}  //end for set re-level
+	} //end void remapWide(float[] pixels, byte[] levelled, int from, int to, double min, double gradient)
+	//-----------------------------------------------------
+
+}  //end class Kernels
@@ -0,0 +1,199 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Where the time goes while levelling: per slice read, statistics and remap times and the
+ * pixels and bytes levelled, summed into totals plus a log-linear histogram of slice latencies
+ * from which percentiles are read.
+ * <p>
+ * Recording a slice is three {@link System#nanoTime()} calls by the caller and a handful of
+ * uncontended {@link LongAdder} and array increments here, nothing per pixel, so it is always
+ * on. Each run records into its own instance, which forwards to {@link #TOTAL}, the JVM wide
+ * totals published over JMX.
+ * </p>
+ */
+final class LevelMetrics implements LevelMetricsMBean {
+	static final String OBJECT_NAME = "com.pthci.imagej:type=AutoLevel_Slice" ;
+
+	// every slice levelled in this JVM, published over JMX
+	static final LevelMetrics TOTAL = register( new LevelMetrics(null) );
+
+	// latency histogram: SUB_BUCKETS linear buckets per power of two nanoseconds
+	private static final int SUB_BITS    = 3 ;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS ;
+	private static final int BUCKETS     = 64*SUB_BUCKETS ;
+
+	private final LevelMetrics parent ;
+
+	private final LongAdder slices     = new LongAdder();
+	private final LongAdder pixels     = new LongAdder();
+	private final LongAdder bytes      = new LongAdder();
+	private final LongAdder readNanos  = new LongAdder();
+	private final LongAdder statsNanos = new LongAdder();
+	private final LongAdder remapNanos = new LongAdder();
+	private final LongAdder wallNanos  = new LongAdder();
+	private final AtomicLongArray latency = new AtomicLongArray( BUCKETS );
+
+
+	// Metrics that also add everything they record to parent, unless it is null
+	LevelMetrics( LevelMetrics parent ) {
+		this.parent = parent;
+	} //end LevelMetrics(LevelMetrics parent)
+	//-----------------------------------------------------
+
+
+	// Register metrics as the JMX MBean, replacing one left by an earlier copy of the plugin
+	// (ImageJ loads plugins afresh on Help>Refresh Menus). Metrics still work if JMX does not.
+	private static LevelMetrics register( LevelMetrics metrics ) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName( OBJECT_NAME );
+			if( server.isRegistered(name) ) server.unregisterMBean( name );
+			server.registerMBean( metrics, name );
+		} catch( Exception | LinkageError e ) {
+			//no management server, e.g. a restricted runtime: keep the totals unpublished
+		}
+		return metrics;
+	} //end private static LevelMetrics register(LevelMetrics metrics)
+	//-----------------------------------------------------
+
+
+	// One slice of nPixels taking nBytes, with the time spent reading, scanning and remapping it
+	void slice( long read, long stats, long remap, long nPixels, long nBytes ) {
+		slices.increment();
+		pixels.add( nPixels );
+		bytes.add( nBytes );
+		readNanos.add( read );
+		statsNanos.add( stats );
+		remapNanos.add( remap );
+		latency.incrementAndGet( bucket( read + stats + remap ) );
+		if( parent != null ) parent.slice( read, stats, remap, nPixels, nBytes );
+	} //end void slice(long read, long stats, long remap, long nPixels, long nBytes)
+	//-----------------------------------------------------
+
+
+	// Time reading and scanning a slice in a first pass whose statistics are shared, before it is levelled
+	void firstPass( long read, long stats ) {
+		readNanos.add( read );
+		statsNanos.add( stats );
+		if( parent != null ) parent.firstPass( read, stats );
+	} //end void firstPass(long read, long stats)
+	//-----------------------------------------------------
+
+
+	// Wall clock time of a whole run, the denominator of the throughput
+	void wall( long nanos ) {
+		wallNanos.add( nanos );
+		if( parent != null ) parent.wall( nanos );
+	} //end void wall(long nanos)
+	//-----------------------------------------------------
+
+
+	// log-linear bucket of a duration: the power of two, then the next SUB_BITS bits below it
+	private static int bucket( long nanos ) {
+		if( nanos < SUB_BUCKETS ) return (int)Math.max( 0, nanos );
+		int exponent = 63 - Long.numberOfLeadingZeros( nanos );
+		int sub      = (int)( (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS-1) );
+		return (exponent - SUB_BITS + 1)*SUB_BUCKETS + sub;
+	} //end private static int bucket(long nanos)
+	//-----------------------------------------------------
+
+
+	// middle of the durations falling in bucket, the inverse of bucket()
+	private static double bucketNanos( int bucket ) {
+		if( bucket < SUB_BUCKETS ) return bucket;
+		int exponent = bucket/SUB_BUCKETS + SUB_BITS - 1;
+		int sub      = bucket % SUB_BUCKETS;
+		double low   = Math.scalb( (double)(SUB_BUCKETS + sub), exponent - SUB_BITS );
+		return low + Math.scalb( 0.5, exponent - SUB_BITS );
+	} //end private static double bucketNanos(int bucket)
+	//-----------------------------------------------------
+
+
+	private double percentileMillis( double percentile ) {
+		long total = 0;
+		for( int b=0; b<BUCKETS; b++ ) total += latency.get(b);
+		if( total == 0 ) return 0;
+		long rank = (long)Math.ceil( total*percentile/100.0 );
+		long sum  = 0;
+		for( int b=0; b<BUCKETS; b++ ) {
+			sum += latency.get(b);
+			if( sum >= rank ) return bucketNanos(b) / 1e6;
+		}
+		return bucketNanos( BUCKETS-1 ) / 1e6;
+	} //end private double percentileMillis(double percentile)
+	//-----------------------------------------------------
+
+
+	@Override public long   getSlices()      { return slices.sum(); }
+	@Override public double getMegaPixels()  { return pixels.sum() / 1e6; }
+	@Override public long   getBytes()       { return bytes.sum(); }
+	@Override public double getReadSeconds() { return readNanos.sum()  / 1e9; }
+	@Override public double getStatsSeconds(){ return statsNanos.sum() / 1e9; }
+	@Override public double getRemapSeconds(){ return remapNanos.sum() / 1e9; }
+	@Override public double getP50SliceMillis() { return percentileMillis( 50 ); }
+	@Override public double getP99SliceMillis() { return percentileMillis( 99 ); }
+
+	@Override
+	public double getMegaPixelsPerSecond() {
+		long wall = wallNanos.sum();
+		return wall == 0 ? 0 : pixels.sum() / (wall / 1e3);
+	} //end public double getMegaPixelsPerSecond()
+	//-----------------------------------------------------
+
+
+	@Override
+	public String getSummary() {
+		return getSummary( wallNanos.sum() );
+	} //end public String getSummary()
+	//-----------------------------------------------------
+
+
+	/**
+	 * The summary over <code>wall</code> nanoseconds of elapsed time rather than the summed wall
+	 * time of the runs, which overstates the time taken when the runs overlapped.
+	 */
+	String getSummary( long wall ) {
+		double read  = getReadSeconds();
+		double stats = getStatsSeconds();
+		double remap = getRemapSeconds();
+		double busy  = Math.max( read + stats + remap, 1e-12 );
+		double mpps  = wall == 0 ? 0 : pixels.sum() / (wall / 1e3);
+		return String.format( "%d slices, %.1f MPixel (%.1f MB) in %.3f s, %.1f MPixel/s; slice p50 %.2f ms, p99 %.2f ms; read %.0f%%, stats %.0f%%, remap %.0f%%",
+			getSlices(), getMegaPixels(), getBytes()/1e6, wall/1e9, mpps,
+			getP50SliceMillis(), getP99SliceMillis(), 100*read/busy, 100*stats/busy, 100*remap/busy );
+	} //end String getSummary(long)
+	//-----------------------------------------------------
+
+
+	@Override
+	public void reset() {
+		slices.reset();
+		pixels.reset();
+		bytes.reset();
+		readNanos.reset();
+		statsNanos.reset();
+		remapNanos.reset();
+		wallNanos.reset();
+		for( int b=0; b<BUCKETS; b++ ) latency.set( b, 0 );
+	} //end public void reset()
+	//-----------------------------------------------------
+
+}  //end class LevelMetrics
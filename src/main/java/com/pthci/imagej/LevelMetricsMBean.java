@@ -0,0 +1,55 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+
+/**
+ * Management interface of the AutoLevel_Slice timing totals, registered with the platform
+ * MBean server as <code>com.pthci.imagej:type=AutoLevel_Slice</code>. Totals cover every slice levelled in
+ * this JVM since it started or since {@link #reset()}.
+ */
+public interface LevelMetricsMBean {
+
+	/** Slices levelled */
+	long getSlices();
+
+	/** Pixels levelled, in millions */
+	double getMegaPixels();
+
+	/** Pixel data levelled, in bytes */
+	long getBytes();
+
+	/** Megapixels levelled per second of wall clock time spent levelling */
+	double getMegaPixelsPerSecond();
+
+	/** Median time to read, scan and remap one slice, in milliseconds */
+	double getP50SliceMillis();
+
+	/** 99th percentile time to read, scan and remap one slice, in milliseconds */
+	double getP99SliceMillis();
+
+	/** Total time spent reading slices, summed over threads, in seconds */
+	double getReadSeconds();
+
+	/** Total time spent in the statistics pass, summed over threads, in seconds */
+	double getStatsSeconds();
+
+	/** Total time spent in the remap pass, summed over threads, in seconds */
+	double getRemapSeconds();
+
+	/** One line summary, as logged after a run */
+	String getSummary();
+
+	/** Zero every total */
+	void reset();
+
+}  //end public interface LevelMetricsMBean
@@ -0,0 +1,171 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Read-only view of a (virtual) stack in which every slice is autolevelled as it is read.
+ * <p>
+ * Slices are only ever held one or two at a time, so saving this stack with
+ * {@link ij.io.FileSaver} streams the levelled result to disk sequentially with bounded
+ * memory, however much larger than the heap the source stack is. While slice n is being
+ * levelled, slice n+1 is already being read from the source on a background thread.
+ * </p>
+ * <p>
+ * Slices are levelled into buffers from a pool rather than in place, so the source is never
+ * changed. A slice's buffer goes back to the pool when the next slice is asked for, which
+ * suits the strictly sequential reads of the TIFF writer. The slice last returned is kept, so
+ * asking for it again, as the ImagePlus constructor and then the writer both do for slice 1,
+ * neither reads nor levels it a second time.
+ * </p>
+ * <p>
+ * Each slice read is reported to a {@link Progress}. Once that is stopped, by Escape or
+ * {@link AutoLevel_Slice#cancel()}, the next read throws a CancellationException, which
+ * ends the save between slices.
+ * </p>
+ */
+class LevellingVirtualStack extends VirtualStack {
+	private final ImageStack      source   ;
+	private final AutoLevel_Slice leveller ;
+	private final ExecutorService reader   ;
+	private final PixelBufferPool pool     ;
+	private final Progress        progress ;
+	private Object                lastLevelled ;
+	private ImageProcessor        lastProcessor ;
+	private int                   lastSlice ;
+
+	private Future<ImageProcessor> prefetched     ;
+	private int                    prefetchedSlice ;
+
+
+	LevellingVirtualStack( ImageStack source, AutoLevel_Slice leveller, PixelBufferPool pool, Progress progress ) {
+		super( source.getWidth(), source.getHeight(), source.getColorModel(), null );
+		this.source   = source;
+		this.leveller = leveller;
+		this.pool     = pool;
+		this.progress = progress;
+		this.reader   = Executors.newSingleThreadExecutor( r -> {
+			Thread thread = new Thread( r, "AutoLevel_Slice reader" );
+			thread.setDaemon( true );
+			return thread;
+		});
+	} //end LevellingVirtualStack(ImageStack source, AutoLevel_Slice leveller, PixelBufferPool pool, Progress progress)
+	//-----------------------------------------------------
+
+
+	// Returns slice n levelled, having first queued the read of slice n+1
+	@Override
+	public synchronized ImageProcessor getProcessor( int n ) {
+		if( n == lastSlice && lastProcessor != null ) return lastProcessor;
+		if( progress.stopped() ) throw new CancellationException( "cancelled before slice "+n );
+		long start = System.nanoTime();
+		ImageProcessor ip = read( n );
+		long readNanos = System.nanoTime() - start;
+		if( n < size() ) {
+			final int next = n+1;
+			prefetched      = reader.submit( () -> source.getProcessor(next) );
+			prefetchedSlice = next;
+		}
+		pool.give( lastLevelled );
+		lastLevelled = pool.take();
+		leveller.level( n, ip, lastLevelled, readNanos );
+		progress.done( n );
+		if( converting() ) {
+			ip = new ByteProcessor( getWidth(), getHeight(), (byte[])lastLevelled, ip.getColorModel() );
+		} else {
+			ip.setPixels( lastLevelled ); //only this processor sees the levelled pixels, not the source stack
+		}
+		lastSlice     = n;
+		lastProcessor = ip;
+		return ip;
+	} //end public synchronized ImageProcessor getProcessor(int n)
+	//-----------------------------------------------------
+
+
+	// Slice n from the prefetch if that is the one queued, otherwise straight from the source,
+	// never touching the source from two threads at once
+	private ImageProcessor read( int n ) {
+		Future<ImageProcessor> pending = prefetched;
+		prefetched = null;
+		ImageProcessor ip = null;
+		if( pending != null ) {
+			try {
+				ip = pending.get();
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "interrupted reading slice "+prefetchedSlice, e );
+			} catch( ExecutionException e ) {
+				throw new RuntimeException( "could not read slice "+prefetchedSlice, e.getCause() );
+			}
+		}
+		if( ip == null || prefetchedSlice != n ) ip = source.getProcessor( n );
+		return ip;
+	} //end private ImageProcessor read(int n)
+	//-----------------------------------------------------
+
+
+	@Override
+	public Object getPixels( int n ) {
+		return getProcessor( n ).getPixels();
+	}
+
+	@Override
+	public void setPixels( Object pixels, int n ) {
+		//read-only, levelled slices are regenerated from the source on every read
+	}
+
+	@Override
+	public String getSliceLabel( int n ) {
+		return source.getSliceLabel( n );
+	}
+
+	@Override
+	public int size() {
+		return source.size();
+	}
+
+	@Override
+	public int getSize() {
+		return source.size();
+	}
+
+	@Override
+	public int getBitDepth() {
+		return converting() ? 8 : source.getBitDepth();
+	}
+
+
+	// Whether 16 or 32-bit slices are being levelled into 8-bit ones
+	private boolean converting() {
+		return leveller.outputType() == ImagePlus.GRAY8 && source.getBitDepth() != 8;
+	} //end private boolean converting()
+
+
+	// Stop the background reader once the stack has been written out
+	void dispose() {
+		reader.shutdownNow();
+	} //end void dispose()
+	//-----------------------------------------------------
+
+}  //end class LevellingVirtualStack
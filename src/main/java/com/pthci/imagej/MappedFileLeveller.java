@@ -0,0 +1,379 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.util.ThreadUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Levels the slices of an uncompressed GRAY8 or GRAY16 file where they lie on disk.
+ * <p>
+ * Each slice is mapped into memory with {@link FileChannel#map} and histogrammed and remapped
+ * through the same lookup tables as {@code process(byte[])} and {@code process(short[])}, straight
+ * from and to the mapped pages, so no slice is ever copied into an ImageJ pixel array and the
+ * operating system pages the file in and out as needed. Slices are levelled in place, or into
+ * a mapped output file that starts as a copy of every byte of the input that is not pixel data
+ * (headers, IFDs, metadata), so a TIFF stays a TIFF with its calibration.
+ * </p>
+ * <p>
+ * Timings go to the same {@link LevelMetrics} and Flight Recorder events as the other paths.
+ * The statistics are always from every pixel of every slice: a statistics region or sampling
+ * set on the plugin is not used here, and the plugin only takes this path without a region.
+ * Each mapping is released as soon as its slice is done, rather than when the garbage
+ * collector gets to it, so on Windows the files are not left locked after levelling.
+ * </p>
+ * <p>
+ * Progress and cancellation go through a {@link Progress} per pass, as for the in-memory
+ * stacks: slices are either levelled or untouched. A cancelled level into a new file leaves
+ * some slices unwritten, so that file is deleted and the pass marked discarded.
+ * </p>
+ */
+final class MappedFileLeveller {
+	private final boolean wholeStack ;
+	private final double  saturated  ;
+	private final int     white16    ; //GRAY16 value levelled to white
+	private final LevelMetrics metrics ;
+	private final Tracer       tracer  ;
+	private final AtomicBoolean cancelled ;
+	private Progress            lastPass  ;
+
+
+	// A slice of pixel data in the file: where it is, how long, and how its pixels are stored
+	private static final class Slice {
+		final long    offset ;
+		final int     nBytes ;
+		final boolean sixteenBit ;
+		final ByteOrder order ;
+
+		Slice( long offset, int nBytes, boolean sixteenBit, ByteOrder order ) {
+			this.offset     = offset;
+			this.nBytes     = nBytes;
+			this.sixteenBit = sixteenBit;
+			this.order      = order;
+		}
+	}  //end private static final class Slice
+
+
+	MappedFileLeveller( boolean wholeStack, double saturated, int white16, LevelMetrics metrics, Tracer tracer, AtomicBoolean cancelled ) {
+		this.wholeStack = wholeStack;
+		this.saturated  = saturated;
+		this.white16    = white16;
+		this.metrics    = metrics;
+		this.tracer     = tracer;
+		this.cancelled  = cancelled;
+	} //end MappedFileLeveller(boolean wholeStack, double saturated, int white16, LevelMetrics metrics, Tracer tracer, AtomicBoolean cancelled)
+	//-----------------------------------------------------
+
+
+	// The slice pass run last, null before level()
+	Progress lastPass() {
+		return lastPass;
+	} //end Progress lastPass()
+	//-----------------------------------------------------
+
+
+	// The image descriptions of a TIFF file, one per IFD (or one for a whole ImageJ stack)
+	static FileInfo[] tiffInfo( File file ) throws IOException {
+		FileInfo[] info = new TiffDecoder( file.getParent() == null ? "" : file.getParent()+File.separator, file.getName() ).getTiffInfo();
+		if( info == null ) throw new IOException( file+" is not a TIFF file" );
+		return info;
+	} //end static FileInfo[] tiffInfo(File file)
+	//-----------------------------------------------------
+
+
+	// True when every image described is uncompressed GRAY8 or unsigned GRAY16 with each slice
+	// stored in one contiguous run of bytes, which is what an ImageJ saved TIFF or a raw file is
+	static boolean canLevel( FileInfo[] info ) {
+		if( info == null || info.length == 0 ) return false;
+		for( FileInfo fi : info ) {
+			if( fi.compression != FileInfo.COMPRESSION_NONE && fi.compression != FileInfo.COMPRESSION_UNKNOWN ) return false;
+			if( fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED ) return false;
+			if( (long)fi.width*fi.height*fi.getBytesPerPixel() > Integer.MAX_VALUE ) return false;
+			if( fi.stripOffsets != null && fi.stripOffsets.length > 1 ) {
+				long next = fi.stripOffsets[0] & 0xffffffffL;
+				for( int s=0; s<fi.stripOffsets.length; s++ ) {
+					if( (fi.stripOffsets[s] & 0xffffffffL) != next ) return false;
+					next += fi.stripLengths[s] & 0xffffffffL;
+				}
+			}
+		}
+		return true;
+	} //end static boolean canLevel(FileInfo[] info)
+	//-----------------------------------------------------
+
+
+	/**
+	 * Level every slice described by info of input, in place when output is null,
+	 * otherwise into output, which is created or overwritten.
+	 */
+	void level( File input, FileInfo[] info, File output ) throws IOException {
+		if( !canLevel(info) ) throw new IOException( input+" is not an uncompressed 8 or 16-bit greyscale file" );
+		List<Slice> slices = slices( info );
+		boolean inPlace = output == null || output.getCanonicalFile().equals( input.getCanonicalFile() );
+		try( RandomAccessFile in  = new RandomAccessFile( input, inPlace ? "rw" : "r" );
+		     RandomAccessFile out = inPlace ? null : new RandomAccessFile( output, "rw" ) ) {
+			FileChannel source      = in.getChannel();
+			FileChannel destination = inPlace ? source : out.getChannel();
+			if( !inPlace ) copyAllBut( slices, source, destination );
+
+			Object span = tracer.beginImage();
+			//in whole stack mode a first pass over every mapped slice finds the stack statistics
+			final SliceStats[] stackStats = new SliceStats[1];
+			if( wholeStack ) {
+				forEachSlice( slices.size(), i -> {
+					Slice slice = slices.get(i);
+					long start = System.nanoTime();
+					ByteBuffer pixels = map( source, slice, FileChannel.MapMode.READ_ONLY );
+					long mapped = System.nanoTime();
+					Object pass = tracer.beginPass();
+					SliceStats sliceStats = stats( pixels, slice );
+					tracer.endPass( pass, "stats", i+1, type(slice), pixelCount(slice) );
+					metrics.firstPass( mapped - start, System.nanoTime() - mapped );
+					unmap( pixels );
+					synchronized( stackStats ) {
+						if( stackStats[0] == null ) stackStats[0] = sliceStats;
+						else                        stackStats[0].include( sliceStats );
+					}
+				});
+			}
+			forEachSlice( slices.size(), i -> level( i, slices.get(i), source, destination, inPlace, stackStats[0] ) );
+			long nPixels = 0;
+			for( Slice slice : slices ) nPixels += pixelCount( slice );
+			tracer.endImage( span, slices.size(), slices.isEmpty() ? ImagePlus.GRAY8 : type(slices.get(0)), nPixels );
+		}
+		if( !inPlace && !lastPass.complete() ) {
+			//the slices never reached were left as whatever the new file held
+			lastPass.discard();
+			output.delete();
+		}
+	} //end void level(File input, FileInfo[] info, File output)
+	//-----------------------------------------------------
+
+
+	// Level slice i, numbered from 0, from its own statistics or from stackStats when not null
+	private void level( int i, Slice slice, FileChannel source, FileChannel destination, boolean inPlace, SliceStats stackStats ) {
+		Object sliceSpan = tracer.beginSlice();
+		long start = System.nanoTime();
+		ByteBuffer pixels   = map( source, slice, inPlace ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY );
+		ByteBuffer levelled = inPlace ? pixels : map( destination, slice, FileChannel.MapMode.READ_WRITE );
+		long mapped = System.nanoTime();
+		SliceStats stats = stackStats;
+		if( stats == null ) {
+			Object pass = tracer.beginPass();
+			stats = stats( pixels, slice );
+			tracer.endPass( pass, "stats", i+1, type(slice), pixelCount(slice) );
+		}
+		long scanned = System.nanoTime();
+		Object pass = tracer.beginPass();
+		remap( pixels, levelled, slice, stats );
+		tracer.endPass( pass, "remap", i+1, type(slice), pixelCount(slice) );
+		unmap( pixels );
+		if( levelled != pixels ) unmap( levelled );
+		metrics.slice( mapped - start, scanned - mapped, System.nanoTime() - scanned, pixelCount(slice), slice.nBytes );
+		if( sliceSpan != null ) tracer.endSlice( sliceSpan, i+1, type(slice), pixelCount(slice), stats.min[0], stats.max[0] );
+	} //end private void level(int i, Slice slice, FileChannel source, FileChannel destination, boolean inPlace, SliceStats stackStats)
+	//-----------------------------------------------------
+
+
+	private static int type( Slice slice ) {
+		return slice.sixteenBit ? ImagePlus.GRAY16 : ImagePlus.GRAY8;
+	} //end private static int type(Slice slice)
+
+	private static long pixelCount( Slice slice ) {
+		return slice.sixteenBit ? slice.nBytes/2 : slice.nBytes;
+	} //end private static long pixelCount(Slice slice)
+	//-----------------------------------------------------
+
+
+	// Every slice the file info describes, in the order ImageJ would read them
+	private static List<Slice> slices( FileInfo[] info ) {
+		List<Slice> slices = new ArrayList<>();
+		for( FileInfo fi : info ) {
+			boolean   sixteenBit = fi.fileType == FileInfo.GRAY16_UNSIGNED;
+			ByteOrder order      = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+			int       nBytes     = fi.width*fi.height*fi.getBytesPerPixel();
+			int       nImages    = Math.max( 1, fi.nImages );
+			for( int image=0; image<nImages; image++ ) {
+				slices.add( new Slice( fi.getOffset() + image*(nBytes + fi.getGap()), nBytes, sixteenBit, order ) );
+			}
+		}
+		return slices;
+	} //end private static List<Slice> slices(FileInfo[] info)
+	//-----------------------------------------------------
+
+
+	// Copy every byte of source that lies outside the slices to the same place in destination
+	private static void copyAllBut( List<Slice> slices, FileChannel source, FileChannel destination ) throws IOException {
+		List<Slice> byOffset = new ArrayList<>( slices );
+		byOffset.sort( Comparator.comparingLong( slice -> slice.offset ) );
+		destination.truncate( 0 );
+		long position = 0;
+		for( Slice slice : byOffset ) {
+			copy( source, destination, position, slice.offset );
+			position = Math.max( position, slice.offset + slice.nBytes );
+		}
+		copy( source, destination, position, source.size() );
+	} //end private static void copyAllBut(List<Slice> slices, FileChannel source, FileChannel destination)
+	//-----------------------------------------------------
+
+
+	private static void copy( FileChannel source, FileChannel destination, long from, long to ) throws IOException {
+		while( from < to ) {
+			long copied = source.transferTo( from, to-from, destination.position(from) );
+			if( copied <= 0 ) throw new IOException( "file ended before its image data" );
+			from += copied;
+		}
+	} //end private static void copy(FileChannel source, FileChannel destination, long from, long to)
+	//-----------------------------------------------------
+
+
+	private static ByteBuffer map( FileChannel channel, Slice slice, FileChannel.MapMode mode ) {
+		try {
+			return channel.map( mode, slice.offset, slice.nBytes ).order( slice.order );
+		} catch( IOException e ) {
+			throw new RuntimeException( "could not map slice at offset "+slice.offset, e );
+		}
+	} //end private static ByteBuffer map(FileChannel channel, Slice slice, FileChannel.MapMode mode)
+	//-----------------------------------------------------
+
+
+	// Release a mapping now rather than when it is garbage collected, which on Windows keeps
+	// the file locked until then. There is no public API for it before the foreign memory API,
+	// so this is Unsafe.invokeCleaner on Java 9+ and the buffer's cleaner on Java 8, and does
+	// nothing where neither is reachable. The buffer must not be touched afterwards.
+	private static void unmap( ByteBuffer buffer ) {
+		if( buffer == null || !buffer.isDirect() ) return;
+		try {
+			if( INVOKE_CLEANER != null ) {
+				INVOKE_CLEANER.invoke( UNSAFE, buffer );
+				return;
+			}
+			Method cleaner = buffer.getClass().getMethod( "cleaner" );
+			cleaner.setAccessible( true );
+			Object clean = cleaner.invoke( buffer );
+			if( clean != null ) clean.getClass().getMethod( "clean" ).invoke( clean );
+		} catch( ReflectiveOperationException | RuntimeException e ) {
+			//left to the garbage collector
+		}
+	} //end private static void unmap(ByteBuffer buffer)
+
+	private static final Object UNSAFE ;
+	private static final Method INVOKE_CLEANER ;
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class ); //Java 9+
+			Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafe.setAccessible( true );
+			unsafe = theUnsafe.get( null );
+		} catch( ReflectiveOperationException | RuntimeException e ) {
+			invokeCleaner = null; //Java 8: fall back to the buffer's own cleaner
+		}
+		UNSAFE         = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	//-----------------------------------------------------
+
+
+	// First pass over a mapped slice, the same histogram process(byte[]) and process(short[]) build
+	private static SliceStats stats( ByteBuffer pixels, Slice slice ) {
+		if( slice.sixteenBit ) {
+			ShortBuffer shorts = pixels.asShortBuffer();
+			int[] histogram = new int[65536];
+			for( int pixelPos=0, n=shorts.limit(); pixelPos<n; pixelPos++ ) histogram[ shorts.get(pixelPos) & 0xffff ]++ ;
+			return SliceStats.fromHistograms( histogram );
+		}
+		int[] histogram = new int[256];
+		for( int pixelPos=0, n=pixels.limit(); pixelPos<n; pixelPos++ ) histogram[ pixels.get(pixelPos) & 0xff ]++ ;
+		return SliceStats.fromHistograms( histogram );
+	} //end private static SliceStats stats(ByteBuffer pixels, Slice slice)
+	//-----------------------------------------------------
+
+
+	// Second pass, by lookup into the same table process(byte[]) or process(short[]) would use
+	private void remap( ByteBuffer pixels, ByteBuffer levelled, Slice slice, SliceStats stats ) {
+		int low  = (int)stats.low ( 0, saturated );
+		int high = (int)stats.high( 0, saturated );
+		if( slice.sixteenBit ) {
+			final short[] lut = AutoLevel_Slice.levelLut16( low, high, white16 );
+			ShortBuffer from = pixels.asShortBuffer();
+			ShortBuffer to   = levelled.asShortBuffer();
+			for( int pixelPos=0, n=from.limit(); pixelPos<n; pixelPos++ ) to.put( pixelPos, lut[ from.get(pixelPos) & 0xffff ] );
+		} else {
+			final byte[] lut = AutoLevel_Slice.levelLut8( low, high );
+			for( int pixelPos=0, n=pixels.limit(); pixelPos<n; pixelPos++ ) levelled.put( pixelPos, lut[ pixels.get(pixelPos) & 0xff ] );
+		}
+	} //end private void remap(ByteBuffer pixels, ByteBuffer levelled, Slice slice, SliceStats stats)
+	//-----------------------------------------------------
+
+
+	private interface SliceTask {
+		void run( int i );
+	}
+
+
+	// Run task on slices 0 to nSlices-1, spread over the ImageJ thread count like forEachSlice(),
+	// stopping between slices once the pass is cancelled
+	private void forEachSlice( final int nSlices, final SliceTask task ) {
+		final Progress progress = new Progress( nSlices, cancelled );
+		lastPass = progress;
+		try {
+			int nThreads = Math.min( Prefs.getThreads(), nSlices );
+			if( nThreads <= 1 ) {
+				for( int i=0; i<nSlices && !progress.stopped(); i++ ) {
+					task.run( i );
+					progress.done( i+1 );
+				}
+				return;
+			}
+			final AtomicInteger nextSlice = new AtomicInteger(0);
+			final Thread[] workers = ThreadUtil.createThreadArray( nThreads );
+			for( int t=0; t<nThreads; t++ ) {
+				workers[t] = new Thread() {
+					@Override
+					public void run() {
+						for( int i=nextSlice.getAndIncrement(); i<nSlices && !progress.stopped(); i=nextSlice.getAndIncrement() ) {
+							task.run( i );
+							progress.done( i+1 );
+						}
+					}
+				};
+			}
+			ThreadUtil.startAndJoin( workers );
+		} finally {
+			progress.finish();
+		}
+	} //end private void forEachSlice(int nSlices, SliceTask task)
+	//-----------------------------------------------------
+
+}  //end class MappedFileLeveller
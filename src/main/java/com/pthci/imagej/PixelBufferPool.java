@@ -0,0 +1,64 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.ImagePlus;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * Reusable slice-sized pixel arrays of one ImageJ image type, so that levelling into
+ * destination slices that are only needed briefly (for example while they are written
+ * to disk) allocates only as many arrays as are in flight at once, not one per slice.
+ */
+final class PixelBufferPool {
+	private final int type    ;
+	private final int nPixels ;
+	private final ConcurrentLinkedQueue<Object> free = new ConcurrentLinkedQueue<>();
+
+
+	PixelBufferPool( int type, int nPixels ) {
+		this.type    = type;
+		this.nPixels = nPixels;
+	} //end PixelBufferPool(int type, int nPixels)
+	//-----------------------------------------------------
+
+
+	// A free array, or a new one if all are in use. Its contents are whatever it last held.
+	Object take() {
+		Object pixels = free.poll();
+		return pixels != null ? pixels : allocate( type, nPixels );
+	} //end Object take()
+	//-----------------------------------------------------
+
+
+	// Return an array from take() for reuse; the caller must not touch it again
+	void give( Object pixels ) {
+		if( pixels != null ) free.offer( pixels );
+	} //end void give(Object pixels)
+	//-----------------------------------------------------
+
+
+	// A new pixel array for nPixels pixels of an ImagePlus type
+	static Object allocate( int type, int nPixels ) {
+		if      (type == ImagePlus.GRAY8    ) return new byte [ nPixels ];
+		else if (type == ImagePlus.GRAY16   ) return new short[ nPixels ];
+		else if (type == ImagePlus.GRAY32   ) return new float[ nPixels ];
+		else if (type == ImagePlus.COLOR_RGB) return new int  [ nPixels ];
+		else {
+			throw new RuntimeException("not supported");
+		}
+	} //end static Object allocate(int type, int nPixels)
+	//-----------------------------------------------------
+
+}  //end class PixelBufferPool
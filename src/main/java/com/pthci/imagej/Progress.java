@@ -0,0 +1,116 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.IJ;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Progress of one pass over the slices of a stack, shared by its worker threads.
+ * <p>
+ * Workers report each finished slice; at most every {@link #UPDATE_NANOS} one of them, whichever
+ * gets there first, updates the ImageJ progress bar and checks for Escape, so the cost is the
+ * same for ten slices of 8192x8192 as for ten thousand of 64x64. Escape, or
+ * {@link AutoLevel_Slice#cancel()}, sets the shared cancelled flag, which workers check before
+ * starting each slice: slices already started are finished, none are started after it, so every
+ * slice is either fully levelled or untouched, and {@link #doneRanges()} says which.
+ * A pass whose output is thrown away when cancelled, such as a new image or a file written
+ * only in part, is marked {@link #discard() discarded} instead.
+ * </p>
+ */
+final class Progress {
+	// progress bar and Escape are looked at no more often than this
+	static final long UPDATE_NANOS = 100_000_000L ;
+
+	private final int           nSlices ;
+	private final AtomicBoolean cancelled ;
+	private final boolean[]     done ;  //by slice number, read once the workers are joined
+	private final AtomicInteger count      = new AtomicInteger();
+	private final AtomicLong    nextUpdate = new AtomicLong( System.nanoTime() + UPDATE_NANOS );
+	private volatile boolean    discarded ;
+
+
+	Progress( int nSlices, AtomicBoolean cancelled ) {
+		this.nSlices   = nSlices;
+		this.cancelled = cancelled;
+		this.done      = new boolean[ nSlices+1 ];
+	} //end Progress(int nSlices, AtomicBoolean cancelled)
+	//-----------------------------------------------------
+
+
+	// True once the pass has been cancelled, so no further slice should be started
+	boolean stopped() {
+		return cancelled.get();
+	} //end boolean stopped()
+	//-----------------------------------------------------
+
+
+	// Slice i is finished; show progress and look for Escape if it is time to.
+	// A slice reported again is only counted once.
+	void done( int i ) {
+		if( done[i] ) return;
+		done[i] = true;
+		int finished = count.incrementAndGet();
+		long now  = System.nanoTime();
+		long next = nextUpdate.get();
+		if( now - next < 0 || !nextUpdate.compareAndSet( next, now + UPDATE_NANOS ) ) return;
+		IJ.showProgress( finished, nSlices );
+		if( IJ.escapePressed() ) cancelled.set( true );
+	} //end void done(int i)
+	//-----------------------------------------------------
+
+
+	// Clear the progress bar at the end of the pass
+	void finish() {
+		IJ.showProgress( 1.0 );
+	} //end void finish()
+	//-----------------------------------------------------
+
+
+	boolean complete() {
+		return count.get() == nSlices;
+	} //end boolean complete()
+	//-----------------------------------------------------
+
+
+	// The slices done were not kept, the pass was cancelled before its output was complete
+	void discard() {
+		discarded = true;
+	} //end void discard()
+
+	boolean discarded() {
+		return discarded;
+	} //end boolean discarded()
+	//-----------------------------------------------------
+
+
+	// The finished slices as ranges, e.g. "1-37, 40, 42-52", or "none"
+	String doneRanges() {
+		StringBuilder ranges = new StringBuilder();
+		for( int i=1; i<=nSlices; i++ ) {
+			if( !done[i] ) continue;
+			int last = i;
+			while( last < nSlices && done[last+1] ) last++;
+			if( ranges.length() > 0 ) ranges.append( ", " );
+			ranges.append( i );
+			if( last > i ) ranges.append( '-' ).append( last );
+			i = last;
+		}
+		return ranges.length() == 0 ? "none" : ranges.toString();
+	} //end String doneRanges()
+	//-----------------------------------------------------
+
+}  //end class Progress
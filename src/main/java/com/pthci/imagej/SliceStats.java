@@ -0,0 +1,186 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+
+/**
+ * The statistics a slice, or a group of slices levelled together, is levelled from:
+ * the darkest and brightest value of each channel and, when collected, a histogram of
+ * each channel from which a saturated range can be read. Greyscale images have one channel,
+ * COLOR_RGB images three, in the order red, green, blue.
+ * <p>
+ * Integer images are histogrammed one bin per value. GRAY32 images are histogrammed on the
+ * top 16 bits of an order-preserving integer key of each float (see {@link #floatBin(float)}),
+ * which covers the whole float range in 65536 bins without first having to know the min and max.
+ * </p>
+ */
+final class SliceStats {
+	final double[] min ;
+	final double[] max ;
+	// per channel histograms, or null when only min and max were collected
+	final long[][] histogram ;
+	// true when the histogram bins are floatBin() keys rather than pixel values
+	final boolean  floatBins ;
+
+
+	SliceStats( double[] min, double[] max, long[][] histogram, boolean floatBins ) {
+		this.min       = min;
+		this.max       = max;
+		this.histogram = histogram;
+		this.floatBins = floatBins;
+	} //end SliceStats(double[] min, double[] max, long[][] histogram, boolean floatBins)
+	//-----------------------------------------------------
+
+
+	SliceStats( double[] min, double[] max ) {
+		this( min, max, null, false );
+	} //end SliceStats(double[] min, double[] max)
+	//-----------------------------------------------------
+
+
+	// single channel (greyscale) statistics
+	SliceStats( double min, double max ) {
+		this( new double[] { min }, new double[] { max } );
+	} //end SliceStats(double min, double max)
+	//-----------------------------------------------------
+
+
+	// Statistics read off one histogram per channel, each indexed by pixel value
+	static SliceStats fromHistograms( int[]... histograms ) {
+		int nChannels = histograms.length;
+		double[] min       = new double[ nChannels ];
+		double[] max       = new double[ nChannels ];
+		long[][] histogram = new long[ nChannels ][];
+		for( int c=0; c<nChannels; c++ ) {
+			int[] h = histograms[c];
+			int thisSliceMin = 0 ;
+			while( thisSliceMin < h.length-1 && h[thisSliceMin] == 0 ) thisSliceMin++ ;
+			int thisSliceMax = h.length-1 ;
+			while( thisSliceMax > 0          && h[thisSliceMax] == 0 ) thisSliceMax-- ;
+			min[c]       = thisSliceMin;
+			max[c]       = thisSliceMax;
+			histogram[c] = toLong( h );
+		}
+		return new SliceStats( min, max, histogram, false );
+	} //end static SliceStats fromHistograms(int[]... histograms)
+	//-----------------------------------------------------
+
+
+	static long[] toLong( int[] counts ) {
+		long[] longCounts = new long[ counts.length ];
+		for( int bin=0; bin<counts.length; bin++ ) longCounts[bin] = counts[bin] ;
+		return longCounts;
+	} //end static long[] toLong(int[] counts)
+	//-----------------------------------------------------
+
+
+	int channels() {
+		return min.length;
+	} //end int channels()
+	//-----------------------------------------------------
+
+
+	// Widen this to also cover other, so a group of slices can share one mapping.
+	// Histograms are summed, so saturation of the group is taken over all its pixels.
+	void include( SliceStats other ) {
+		for( int c=0; c<min.length; c++ ) {
+			if( other.min[c] < min[c] ) min[c] = other.min[c] ;
+			if( other.max[c] > max[c] ) max[c] = other.max[c] ;
+			if( histogram != null && other.histogram != null ) {
+				for( int bin=0; bin<histogram[c].length; bin++ ) histogram[c][bin] += other.histogram[c][bin] ;
+			}
+		}
+	} //end void include(SliceStats other)
+	//-----------------------------------------------------
+
+
+	SliceStats copy() {
+		long[][] histogramCopy = null;
+		if( histogram != null ) {
+			histogramCopy = new long[ histogram.length ][];
+			for( int c=0; c<histogram.length; c++ ) histogramCopy[c] = histogram[c].clone();
+		}
+		return new SliceStats( min.clone(), max.clone(), histogramCopy, floatBins );
+	} //end SliceStats copy()
+	//-----------------------------------------------------
+
+
+	/**
+	 * The value levelled to black: the min of channel c, or with saturated &gt; 0 the value
+	 * below which saturated percent of the pixels lie.
+	 */
+	double low( int c, double saturated ) {
+		if( saturated <= 0 || histogram == null ) return min[c];
+		long[] h = histogram[c];
+		long threshold = (long)( count(c) * saturated / 100.0 );
+		long sum = 0;
+		for( int bin=0; bin<h.length; bin++ ) {
+			sum += h[bin];
+			if( sum > threshold ) return Math.max( min[c], binLow(bin) );
+		}
+		return min[c];
+	} //end double low(int c, double saturated)
+	//-----------------------------------------------------
+
+
+	/**
+	 * The value levelled to white: the max of channel c, or with saturated &gt; 0 the value
+	 * above which saturated percent of the pixels lie.
+	 */
+	double high( int c, double saturated ) {
+		if( saturated <= 0 || histogram == null ) return max[c];
+		long[] h = histogram[c];
+		long threshold = (long)( count(c) * saturated / 100.0 );
+		long sum = 0;
+		for( int bin=h.length-1; bin>=0; bin-- ) {
+			sum += h[bin];
+			if( sum > threshold ) return Math.min( max[c], binHigh(bin) );
+		}
+		return max[c];
+	} //end double high(int c, double saturated)
+	//-----------------------------------------------------
+
+
+	private long count( int c ) {
+		long total = 0;
+		for( long n : histogram[c] ) total += n;
+		return total;
+	} //end private long count(int c)
+	//-----------------------------------------------------
+
+
+	private double binLow( int bin ) {
+		return floatBins ? binToFloat( bin, 0 ) : bin;
+	}
+
+	private double binHigh( int bin ) {
+		return floatBins ? binToFloat( bin, 0xffff ) : bin;
+	}
+
+
+	// Float bits reordered so that comparing them as signed ints orders them as floats,
+	// then the top 16 bits made unsigned, 0 to 65535. NaN must be excluded by the caller.
+	static int floatBin( float value ) {
+		int bits = Float.floatToRawIntBits( value );
+		return ( (bits ^ ((bits >> 31) & 0x7fffffff)) >>> 16 ) ^ 0x8000 ;
+	} //end static int floatBin(float value)
+	//-----------------------------------------------------
+
+
+	// Inverse of floatBin, with lowBits filling the 16 bits the bin discards
+	private static float binToFloat( int bin, int lowBits ) {
+		int key = ( (bin ^ 0x8000) << 16 ) | lowBits ;
+		return Float.intBitsToFloat( key ^ ((key >> 31) & 0x7fffffff) );
+	} //end private static float binToFloat(int bin, int lowBits)
+	//-----------------------------------------------------
+
+}  //end class SliceStats
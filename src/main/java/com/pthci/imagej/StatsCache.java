@@ -0,0 +1,241 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Slice statistics kept between runs, keyed by a hash of the slice's pixels, so that levelling
+ * the same data again with other options can skip the first pass over unchanged slices.
+ * <p>
+ * The shared in-memory cache is least recently used first out, bounded by the bytes its
+ * statistics take (a GRAY16 or GRAY32 histogram alone is 512 KB). The statistics of one image
+ * can also be written to and read back from a sidecar file next to it, see {@link #save} and
+ * {@link #load}. Cached statistics are never changed; callers copy before widening them.
+ * </p>
+ */
+final class StatsCache {
+	static final StatsCache SHARED = new StatsCache( 256L*1024*1024 );
+
+	// sidecar file format: magic number then version, then the number of entries
+	private static final int MAGIC   = 0x414c5353 ; //"ALSS"
+	private static final int VERSION = 1 ;
+	// bytes of the smallest entry: key, channel count, two flags, and min and max of one channel
+	private static final int ENTRY_MIN_BYTES = 8 + 1 + 1 + 1 + 8 + 8 ;
+
+	// constants of the per-pixel mix, from SplitMix64
+	private static final long GOLDEN = 0x9e3779b97f4a7c15L ;
+	private static final long MIX    = 0xbf58476d1ce4e5b9L ;
+
+	private final long capacityBytes ;
+	private long       bytes ;
+	private final LinkedHashMap<Long,SliceStats> entries = new LinkedHashMap<>( 16, 0.75f, true );
+
+
+	StatsCache( long capacityBytes ) {
+		this.capacityBytes = capacityBytes;
+	} //end StatsCache(long capacityBytes)
+	//-----------------------------------------------------
+
+
+	// The cached statistics for key, or null if there are none or they lack a needed histogram
+	synchronized SliceStats get( long key, boolean needHistogram ) {
+		SliceStats stats = entries.get( key );
+		if( stats == null || (needHistogram && stats.histogram == null) ) return null;
+		return stats;
+	} //end synchronized SliceStats get(long key, boolean needHistogram)
+	//-----------------------------------------------------
+
+
+	// Cache stats under key, dropping the least recently used entries to stay within capacity
+	synchronized void put( long key, SliceStats stats ) {
+		SliceStats old = entries.put( key, stats );
+		if( old != null ) bytes -= sizeOf( old );
+		bytes += sizeOf( stats );
+		Iterator<SliceStats> eldest = entries.values().iterator();
+		while( bytes > capacityBytes && eldest.hasNext() ) {
+			SliceStats dropped = eldest.next();
+			if( dropped == stats ) break;
+			bytes -= sizeOf( dropped );
+			eldest.remove();
+		}
+	} //end synchronized void put(long key, SliceStats stats)
+	//-----------------------------------------------------
+
+
+	private static long sizeOf( SliceStats stats ) {
+		long size = 64 + 16L*stats.channels();
+		if( stats.histogram != null ) {
+			for( long[] h : stats.histogram ) size += 16 + 8L*h.length;
+		}
+		return size;
+	} //end private static long sizeOf(SliceStats stats)
+	//-----------------------------------------------------
+
+
+	/*-----------------------------------------------------------------------------
+	 * Content hash: the sum over every pixel of a mix of its value and position.
+	 * Each pixel's term is independent of the others, so any split of the slice into
+	 * bands hashes to the same key once the band sums are added, and the loop has no
+	 * carried dependency beyond the running sum.
+	 *---------------------------------------------------------------------------*/
+
+	// Hash of pixels[from,to) of a byte[], short[], float[] or int[] slice, to be summed over bands
+	static long hash( Object pixels, int from, int to ) {
+		long sum = 0;
+		if( pixels instanceof byte[] ) {
+			byte[] p = (byte[]) pixels;
+			for( int i=from; i<to; i++ ) sum += mix( p[i] & 0xff, i );
+		} else if( pixels instanceof short[] ) {
+			short[] p = (short[]) pixels;
+			for( int i=from; i<to; i++ ) sum += mix( p[i] & 0xffff, i );
+		} else if( pixels instanceof float[] ) {
+			float[] p = (float[]) pixels;
+			for( int i=from; i<to; i++ ) sum += mix( Float.floatToRawIntBits(p[i]), i );
+		} else {
+			int[] p = (int[]) pixels;
+			for( int i=from; i<to; i++ ) sum += mix( p[i], i );
+		}
+		return sum;
+	} //end static long hash(Object pixels, int from, int to)
+	//-----------------------------------------------------
+
+
+	private static long mix( int value, int position ) {
+		long x = ( (long)value << 32 | position ) + GOLDEN ;
+		x = (x ^ (x >>> 30)) * MIX ;
+		return x ^ (x >>> 31) ;
+	} //end private static long mix(int value, int position)
+	//-----------------------------------------------------
+
+
+	// The cache key of a slice from the sum of its band hashes, its type and its size
+	static long key( long hashSum, int type, int nPixels ) {
+		long x = hashSum ^ ( (long)type << 56 ) ^ ( (long)nPixels * GOLDEN );
+		x = (x ^ (x >>> 33)) * MIX ;
+		return x ^ (x >>> 29) ;
+	} //end static long key(long hashSum, int type, int nPixels)
+	//-----------------------------------------------------
+
+
+	/*-----------------------------------------------------------------------------
+	 * Sidecar files: the statistics of one image's slices, histograms stored sparsely
+	 *---------------------------------------------------------------------------*/
+
+	// Read the statistics in sidecar into this cache, returning how many were read.
+	// A missing, unreadable, foreign, truncated or corrupt file reads as empty: it only costs a
+	// first pass. Every length in the file is checked before anything is allocated from it, and
+	// nothing is cached unless the whole file reads, so a damaged entry cannot level a slice.
+	int load( File sidecar ) {
+		if( !sidecar.isFile() ) return 0;
+		try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(sidecar) ) ) ) {
+			if( in.readInt() != MAGIC || in.readInt() != VERSION ) return 0;
+			int nEntries = in.readInt();
+			//each entry is at least a key and a one channel header
+			if( nEntries < 0 || nEntries > in.available() / ENTRY_MIN_BYTES ) throw new IOException( "corrupt sidecar" );
+			List<Long>       keys  = new ArrayList<>( nEntries );
+			List<SliceStats> stats = new ArrayList<>( nEntries );
+			for( int e=0; e<nEntries; e++ ) {
+				keys .add( in.readLong() );
+				stats.add( read(in) );
+			}
+			for( int e=0; e<nEntries; e++ ) put( keys.get(e), stats.get(e) );
+			return nEntries;
+		} catch( IOException | RuntimeException e ) {
+			return 0;
+		}
+	} //end int load(File sidecar)
+	//-----------------------------------------------------
+
+
+	// Write stats, the statistics of one image's slices by key, to sidecar
+	static void save( File sidecar, Map<Long,SliceStats> stats ) throws IOException {
+		try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(sidecar) ) ) ) {
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( stats.size() );
+			for( Map.Entry<Long,SliceStats> entry : stats.entrySet() ) {
+				out.writeLong( entry.getKey() );
+				write( out, entry.getValue() );
+			}
+		}
+	} //end static void save(File sidecar, Map<Long,SliceStats> stats)
+	//-----------------------------------------------------
+
+
+	private static void write( DataOutputStream out, SliceStats stats ) throws IOException {
+		out.writeByte( stats.channels() );
+		out.writeBoolean( stats.floatBins );
+		out.writeBoolean( stats.histogram != null );
+		for( int c=0; c<stats.channels(); c++ ) {
+			out.writeDouble( stats.min[c] );
+			out.writeDouble( stats.max[c] );
+			if( stats.histogram == null ) continue;
+			long[] h = stats.histogram[c];
+			int nonZero = 0;
+			for( long count : h ) if( count != 0 ) nonZero++;
+			out.writeInt( h.length );
+			out.writeInt( nonZero );
+			for( int bin=0; bin<h.length; bin++ ) {
+				if( h[bin] == 0 ) continue;
+				out.writeInt( bin );
+				out.writeLong( h[bin] );
+			}
+		}
+	} //end private static void write(DataOutputStream out, SliceStats stats)
+	//-----------------------------------------------------
+
+
+	// One entry as write() wrote it. in must be over the rest of a file, so available() is
+	// the number of bytes left to check lengths against.
+	private static SliceStats read( DataInputStream in ) throws IOException {
+		int nChannels       = in.readByte();
+		if( nChannels != 1 && nChannels != 3 ) throw new IOException( "corrupt sidecar: "+nChannels+" channels" );
+		boolean floatBins   = in.readBoolean();
+		boolean histograms  = in.readBoolean();
+		double[] min        = new double[ nChannels ];
+		double[] max        = new double[ nChannels ];
+		long[][] histogram  = histograms ? new long[ nChannels ][] : null;
+		for( int c=0; c<nChannels; c++ ) {
+			min[c] = in.readDouble();
+			max[c] = in.readDouble();
+			if( !histograms ) continue;
+			int length  = in.readInt();
+			int nonZero = in.readInt();
+			//histograms are one bin per 8-bit value, or 65536 bins for 16-bit values and GRAY32 keys
+			if( length != 256 && length != 65536 ) throw new IOException( "corrupt sidecar: "+length+" bins" );
+			if( nonZero < 0 || nonZero > length || nonZero > in.available() / 12 ) throw new IOException( "corrupt sidecar: "+nonZero+" bins set" );
+			histogram[c] = new long[ length ];
+			for( int n=0; n<nonZero; n++ ) {
+				int bin = in.readInt();
+				if( bin < 0 || bin >= length ) throw new IOException( "corrupt sidecar: bin "+bin );
+				histogram[c][bin] = in.readLong();
+			}
+		}
+		return new SliceStats( min, max, histogram, floatBins );
+	} //end private static SliceStats read(DataInputStream in)
+	//-----------------------------------------------------
+
+}  //end class StatsCache
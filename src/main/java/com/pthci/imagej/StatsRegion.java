@@ -0,0 +1,174 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+
+/**
+ * The part of each slice the levelling statistics are taken from, when not the whole frame:
+ * a bounding rectangle and, for a non-rectangular selection or a binary mask, which pixels
+ * of that rectangle are in it.
+ * <p>
+ * The first pass only visits the rows and columns of the rectangle, so it costs in proportion
+ * to the area of the region rather than of the slice, and the second pass still remaps the
+ * whole frame. It is run by row band, one loop per pixel type, so large slices share it out
+ * over every thread as the full scans do. That way a bright slide label or a dark border outside the region does not set
+ * the levelling range. Everything is histogrammed, as for saturation, so min, max and
+ * percentiles all come from the region.
+ * </p>
+ */
+final class StatsRegion {
+	private final Rectangle bounds ;
+	// bounds.width*bounds.height, non-zero for pixels in the region, or null when all of bounds is
+	private final byte[]    mask   ;
+
+
+	private StatsRegion( Rectangle bounds, byte[] mask ) {
+		this.bounds = bounds;
+		this.mask   = mask;
+	} //end private StatsRegion(Rectangle bounds, byte[] mask)
+	//-----------------------------------------------------
+
+
+	// The region of an area selection, or null for no selection or a line or point one
+	static StatsRegion of( Roi roi ) {
+		if( roi == null || !roi.isArea() ) return null;
+		ImageProcessor mask = roi.getMask(); //null for a plain rectangle
+		return new StatsRegion( roi.getBounds(), mask == null ? null : (byte[])mask.convertToByte(false).getPixels() );
+	} //end static StatsRegion of(Roi roi)
+	//-----------------------------------------------------
+
+
+	// The region of the non-zero pixels of a full frame mask, cropped to their bounding rectangle
+	static StatsRegion ofMask( ImageProcessor frameMask ) {
+		ImageProcessor mask = frameMask.convertToByte( false );
+		byte[] pixels = (byte[])mask.getPixels();
+		int width = mask.getWidth(), height = mask.getHeight();
+		int x0 = width, y0 = height, x1 = -1, y1 = -1;
+		for( int y=0; y<height; y++ ) {
+			for( int x=0; x<width; x++ ) {
+				if( pixels[y*width+x] == 0 ) continue;
+				if( x < x0 ) x0 = x ;
+				if( x > x1 ) x1 = x ;
+				if( y < y0 ) y0 = y ;
+				if( y > y1 ) y1 = y ;
+			}
+		}
+		if( x1 < 0 ) throw new IllegalArgumentException( "the mask has no pixels set" );
+		Rectangle bounds = new Rectangle( x0, y0, x1-x0+1, y1-y0+1 );
+		byte[] crop = new byte[ bounds.width*bounds.height ];
+		for( int y=0; y<bounds.height; y++ ) System.arraycopy( pixels, (y0+y)*width + x0, crop, y*bounds.width, bounds.width );
+		return new StatsRegion( bounds, crop );
+	} //end static StatsRegion ofMask(ImageProcessor frameMask)
+	//-----------------------------------------------------
+
+
+	// True when some of the region lies inside a slice width by height pixels,
+	// since a selection may hang over the edges of the slice or lie wholly off it
+	boolean overlaps( int width, int height ) {
+		return Math.max( 0, bounds.x ) < Math.min( width,  bounds.x + bounds.width  )
+		    && Math.max( 0, bounds.y ) < Math.min( height, bounds.y + bounds.height );
+	} //end boolean overlaps(int width, int height)
+	//-----------------------------------------------------
+
+
+	// The histogram scans below each cover the region's pixels in rows [y0,y1) of a slice width
+	// pixels wide, so a large slice can be shared out by row bands with a histogram per worker.
+	// Rows and columns are clipped to the region's rectangle, and each returns how many pixels
+	// of the region it counted.
+
+	// GRAY8
+	long histogram( byte[] pixels, int width, int y0, int y1, int[] histogram ) {
+		final int x0 = Math.max( 0, bounds.x ), x1 = Math.min( width, bounds.x + bounds.width );
+		long counted = 0 ;
+		for( int y=Math.max( y0, bounds.y ), yEnd=Math.min( y1, bounds.y + bounds.height ); y<yEnd; y++ ) {
+			final int row     = y*width ;
+			final int maskRow = (y-bounds.y)*bounds.width - bounds.x ; //maskRow+x is the mask index of column x
+			for( int x=x0; x<x1; x++ ) {
+				if( mask != null && mask[maskRow+x] == 0 ) continue;
+				histogram[ pixels[row+x] & 0xff ]++ ;
+				counted++ ;
+			}  //end for histogram scan of the row
+		}
+		return counted;
+	} //end long histogram(byte[] pixels, int width, int y0, int y1, int[] histogram)
+
+
+	// GRAY16
+	long histogram( short[] pixels, int width, int y0, int y1, int[] histogram ) {
+		final int x0 = Math.max( 0, bounds.x ), x1 = Math.min( width, bounds.x + bounds.width );
+		long counted = 0 ;
+		for( int y=Math.max( y0, bounds.y ), yEnd=Math.min( y1, bounds.y + bounds.height ); y<yEnd; y++ ) {
+			final int row     = y*width ;
+			final int maskRow = (y-bounds.y)*bounds.width - bounds.x ;
+			for( int x=x0; x<x1; x++ ) {
+				if( mask != null && mask[maskRow+x] == 0 ) continue;
+				histogram[ pixels[row+x] & 0xffff ]++ ;
+				counted++ ;
+			}  //end for histogram scan of the row
+		}
+		return counted;
+	} //end long histogram(short[] pixels, int width, int y0, int y1, int[] histogram)
+
+
+	// COLOR_RGB, a histogram per channel
+	long histogram( int[] pixels, int width, int y0, int y1, int[] red, int[] green, int[] blue ) {
+		final int x0 = Math.max( 0, bounds.x ), x1 = Math.min( width, bounds.x + bounds.width );
+		long counted = 0 ;
+		int c ;
+		for( int y=Math.max( y0, bounds.y ), yEnd=Math.min( y1, bounds.y + bounds.height ); y<yEnd; y++ ) {
+			final int row     = y*width ;
+			final int maskRow = (y-bounds.y)*bounds.width - bounds.x ;
+			for( int x=x0; x<x1; x++ ) {
+				if( mask != null && mask[maskRow+x] == 0 ) continue;
+				c = pixels[row+x] ;
+				red  [ (c >> 16) & 0xff ]++ ;
+				green[ (c >>  8) & 0xff ]++ ;
+				blue [  c        & 0xff ]++ ;
+				counted++ ;
+			}  //end for histogram scan of the row
+		}
+		return counted;
+	} //end long histogram(int[] pixels, int width, int y0, int y1, int[] red, int[] green, int[] blue)
+
+
+	// GRAY32: finite values only, into a histogram of floatBin() keys, widening minMax { min, max }
+	long histogram( float[] pixels, int width, int y0, int y1, int[] histogram, float[] minMax ) {
+		final int x0 = Math.max( 0, bounds.x ), x1 = Math.min( width, bounds.x + bounds.width );
+		float thisBandMin = minMax[0] ;
+		float thisBandMax = minMax[1] ;
+		float testedPixelValue ;
+		long counted = 0 ;
+		for( int y=Math.max( y0, bounds.y ), yEnd=Math.min( y1, bounds.y + bounds.height ); y<yEnd; y++ ) {
+			final int row     = y*width ;
+			final int maskRow = (y-bounds.y)*bounds.width - bounds.x ;
+			for( int x=x0; x<x1; x++ ) {
+				if( mask != null && mask[maskRow+x] == 0 ) continue;
+				counted++ ;
+				testedPixelValue = pixels[row+x];
+				if( !(Math.abs(testedPixelValue) <= Float.MAX_VALUE) ) continue; //NaN and infinity have no place in the range
+				if( testedPixelValue < thisBandMin ) thisBandMin = testedPixelValue ;
+				if( testedPixelValue > thisBandMax ) thisBandMax = testedPixelValue ;
+				histogram[ SliceStats.floatBin(testedPixelValue) ]++ ;
+			}  //end for min-max and histogram scan of the row
+		}
+		minMax[0] = thisBandMin ;
+		minMax[1] = thisBandMax ;
+		return counted;
+	} //end long histogram(float[] pixels, int width, int y0, int y1, int[] histogram, float[] minMax)
+	//-----------------------------------------------------
+
+}  //end class StatsRegion
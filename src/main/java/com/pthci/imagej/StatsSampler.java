@@ -0,0 +1,113 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.ImagePlus;
+
+
+/**
+ * Approximate statistics of a slice from a fraction of its pixels, for previews of slices too
+ * big to scan every time they are looked at.
+ * <p>
+ * The slice is cut into strata of step = 1/fraction consecutive pixels and one pixel of each
+ * is histogrammed. Strided sampling takes the same position in every stratum, shifted by one
+ * pixel per row so a pattern repeating every step columns is not sampled at one phase only.
+ * Jittered sampling moves the position within each stratum by the golden ratio sequence, a
+ * low-discrepancy sequence rather than true blue noise, which spreads the samples evenly without
+ * the regular grid of strided sampling. Either way each stratum is sampled exactly once, so the
+ * cost is fraction of a full scan. Min and max are those of the samples, so can only be narrower
+ * than the true range.
+ * </p>
+ */
+final class StatsSampler {
+	private static final double GOLDEN = 0.6180339887498949 ; //fractional part of the golden ratio
+
+	private final int     step      ;
+	private final boolean jittered  ;
+
+
+	StatsSampler( double fraction, boolean jittered ) {
+		this.step     = (int)Math.max( 1, Math.round( 1.0/fraction ) );
+		this.jittered = jittered;
+	} //end StatsSampler(double fraction, boolean jittered)
+	//-----------------------------------------------------
+
+
+	double fraction() {
+		return 1.0/step;
+	} //end double fraction()
+
+	boolean jittered() {
+		return jittered;
+	} //end boolean jittered()
+	//-----------------------------------------------------
+
+
+	// Position within stratum j, which starts at pixel base of a slice width pixels wide
+	private int offset( long j, long base, int width ) {
+		if( jittered ) {
+			double jitter = j*GOLDEN ;
+			return (int)( ( jitter - Math.floor(jitter) )*step );
+		}
+		return (int)( (base/width) % step );
+	} //end private int offset(long j, long base, int width)
+	//-----------------------------------------------------
+
+
+	// Statistics of the sampled pixels of one slice
+	SliceStats stats( Object pixels, int type, int width, int height ) {
+		final long nPixels = (long)width*height ;
+		if( type == ImagePlus.GRAY32 ) return stats( (float[])pixels, width, nPixels );
+
+		final int[][] histogram ;
+		if     ( type == ImagePlus.GRAY8     ) histogram = new int[][] { new int[256] };
+		else if( type == ImagePlus.GRAY16    ) histogram = new int[][] { new int[65536] };
+		else if( type == ImagePlus.COLOR_RGB ) histogram = new int[][] { new int[256], new int[256], new int[256] };
+		else {
+			throw new RuntimeException("not supported");
+		}
+		int pixelPos ;
+		for( long j=0, base=0; base<nPixels; j++, base+=step ) {
+			pixelPos = (int)Math.min( base + offset(j, base, width), nPixels-1 );
+			if     ( type == ImagePlus.GRAY8  ) histogram[0][ ((byte[]) pixels)[pixelPos] & 0xff   ]++ ;
+			else if( type == ImagePlus.GRAY16 ) histogram[0][ ((short[])pixels)[pixelPos] & 0xffff ]++ ;
+			else {
+				int c = ((int[])pixels)[pixelPos] ;
+				histogram[0][ (c >> 16) & 0xff ]++ ;
+				histogram[1][ (c >>  8) & 0xff ]++ ;
+				histogram[2][  c        & 0xff ]++ ;
+			}
+		}  //end for sampled histogram scan
+		return SliceStats.fromHistograms( histogram );
+	} //end SliceStats stats(Object pixels, int type, int width, int height)
+	//-----------------------------------------------------
+
+
+	// GRAY32: finite min and max of the samples, with a histogram of floatBin() keys for saturation
+	private SliceStats stats( float[] pixels, int width, long nPixels ) {
+		float thisSliceMin = Float.POSITIVE_INFINITY ;
+		float thisSliceMax = Float.NEGATIVE_INFINITY ;
+		int[] histogram = new int[65536];
+		float testedPixelValue ;
+		for( long j=0, base=0; base<nPixels; j++, base+=step ) {
+			testedPixelValue = pixels[ (int)Math.min( base + offset(j, base, width), nPixels-1 ) ];
+			if( !(Math.abs(testedPixelValue) <= Float.MAX_VALUE) ) continue; //NaN and infinity have no place in the range
+			if( testedPixelValue < thisSliceMin ) thisSliceMin = testedPixelValue ;
+			if( testedPixelValue > thisSliceMax ) thisSliceMax = testedPixelValue ;
+			histogram[ SliceStats.floatBin(testedPixelValue) ]++ ;
+		}  //end for sampled min-max and histogram scan
+		return new SliceStats( new double[] { thisSliceMin }, new double[] { thisSliceMax },
+		                       new long[][] { SliceStats.toLong( histogram ) }, true );
+	} //end private SliceStats stats(float[] pixels, int width, long nPixels)
+	//-----------------------------------------------------
+
+}  //end class StatsSampler
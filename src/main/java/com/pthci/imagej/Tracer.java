@@ -0,0 +1,83 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import ij.ImagePlus;
+
+
+/**
+ * Spans around the levelling of an image, of each slice and of each kernel pass, for
+ * correlating levelling with GC and I/O in Flight Recorder recordings.
+ * <p>
+ * This version does nothing. On Java 17 and later the multi-release jar also carries
+ * {@code JfrTracer}, which overrides it to emit jdk.jfr events; {@link #INSTANCE} is that
+ * unless the system property {@code autolevel.jfr} is false. The events are disabled until a
+ * recording enables them (for example {@code com.pthci.imagej.Slice#enabled=true}), and while
+ * they are disabled each begin returns null and each end returns at once.
+ * </p>
+ */
+class Tracer {
+	static final Tracer INSTANCE = select();
+
+
+	private static Tracer select() {
+		if( !Boolean.parseBoolean( System.getProperty("autolevel.jfr", "true") ) ) return new Tracer();
+		try {
+			return (Tracer)Class.forName( "com.pthci.imagej.JfrTracer" ).getDeclaredConstructor().newInstance();
+		} catch( ReflectiveOperationException | LinkageError e ) {
+			//Java 8 to 16 jar, or no jdk.jfr module: trace nothing
+			return new Tracer();
+		}
+	} //end private static Tracer select()
+	//-----------------------------------------------------
+
+
+	// Start timing a whole image, returning the span to end, or null when not traced
+	Object beginImage() {
+		return null;
+	}
+
+	void endImage( Object span, int nSlices, int type, long nPixels ) {
+	}
+
+
+	// Start timing one slice, returning the span to end, or null when not traced
+	Object beginSlice() {
+		return null;
+	}
+
+	void endSlice( Object span, int slice, int type, long nPixels, double min, double max ) {
+	}
+
+
+	// Start timing one kernel pass over a slice, returning the span to end, or null when not traced
+	Object beginPass() {
+		return null;
+	}
+
+	void endPass( Object span, String pass, int slice, int type, long nPixels ) {
+	}
+
+
+	// ImagePlus type constant as the name events carry
+	static String typeName( int type ) {
+		switch( type ) {
+			case ImagePlus.GRAY8     : return "GRAY8";
+			case ImagePlus.GRAY16    : return "GRAY16";
+			case ImagePlus.GRAY32    : return "GRAY32";
+			case ImagePlus.COLOR_RGB : return "COLOR_RGB";
+			default                     : return "type "+type;
+		}
+	} //end static String typeName(int type)
+	//-----------------------------------------------------
+
+}  //end class Tracer
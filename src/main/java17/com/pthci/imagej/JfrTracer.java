@@ -0,0 +1,153 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder events for the spans of {@link Tracer}. Every event type is disabled by
+ * default, and each span first asks its {@link EventType}, looked up once, whether a recording
+ * has enabled it, so unless one has no event is allocated. Durations are the events' own.
+ */
+class JfrTracer extends Tracer {
+
+	@Name("com.pthci.imagej.Image")
+	@Label("AutoLevel Image")
+	@Description("Levelling of a whole image or stack")
+	@Category({ "ImageJ", "AutoLevel_Slice" })
+	@Enabled(false)
+	@StackTrace(false)
+	static final class ImageEvent extends Event {
+		@Label("Slices")     int    slices ;
+		@Label("Pixel Type") String type ;
+		@Label("Pixels")     long   pixels ;
+	}  //end static final class ImageEvent
+
+	private static final EventType IMAGE_EVENTS = EventType.getEventType( ImageEvent.class );
+
+
+	@Name("com.pthci.imagej.Slice")
+	@Label("AutoLevel Slice")
+	@Description("Levelling of one slice: its statistics pass, if not shared, and its remap")
+	@Category({ "ImageJ", "AutoLevel_Slice" })
+	@Enabled(false)
+	@StackTrace(false)
+	static final class SliceEvent extends Event {
+		@Label("Slice")      int    slice ;
+		@Label("Pixel Type") String type ;
+		@Label("Pixels")     long   pixels ;
+		@Label("Min")        double min ;
+		@Label("Max")        double max ;
+	}  //end static final class SliceEvent
+
+	private static final EventType SLICE_EVENTS = EventType.getEventType( SliceEvent.class );
+
+
+	@Name("com.pthci.imagej.Pass")
+	@Label("AutoLevel Kernel Pass")
+	@Description("One kernel pass over a slice, the statistics pass or the remap")
+	@Category({ "ImageJ", "AutoLevel_Slice" })
+	@Enabled(false)
+	@StackTrace(false)
+	static final class PassEvent extends Event {
+		@Label("Pass")       String pass ;
+		@Label("Slice")      int    slice ;
+		@Label("Pixel Type") String type ;
+		@Label("Pixels")     long   pixels ;
+	}  //end static final class PassEvent
+
+	private static final EventType PASS_EVENTS = EventType.getEventType( PassEvent.class );
+
+
+	@Override
+	Object beginImage() {
+		if( !IMAGE_EVENTS.isEnabled() ) return null;
+		ImageEvent event = new ImageEvent();
+		event.begin();
+		return event;
+	} //end Object beginImage()
+	//-----------------------------------------------------
+
+
+	@Override
+	void endImage( Object span, int nSlices, int type, long nPixels ) {
+		if( span == null ) return;
+		ImageEvent event = (ImageEvent) span;
+		event.end();
+		if( !event.shouldCommit() ) return;
+		event.slices = nSlices;
+		event.type   = typeName( type );
+		event.pixels = nPixels;
+		event.commit();
+	} //end void endImage(Object span, int nSlices, int type, long nPixels)
+	//-----------------------------------------------------
+
+
+	@Override
+	Object beginSlice() {
+		if( !SLICE_EVENTS.isEnabled() ) return null;
+		SliceEvent event = new SliceEvent();
+		event.begin();
+		return event;
+	} //end Object beginSlice()
+	//-----------------------------------------------------
+
+
+	@Override
+	void endSlice( Object span, int slice, int type, long nPixels, double min, double max ) {
+		if( span == null ) return;
+		SliceEvent event = (SliceEvent) span;
+		event.end();
+		if( !event.shouldCommit() ) return;
+		event.slice  = slice;
+		event.type   = typeName( type );
+		event.pixels = nPixels;
+		event.min    = min;
+		event.max    = max;
+		event.commit();
+	} //end void endSlice(Object span, int slice, int type, long nPixels, double min, double max)
+	//-----------------------------------------------------
+
+
+	@Override
+	Object beginPass() {
+		if( !PASS_EVENTS.isEnabled() ) return null;
+		PassEvent event = new PassEvent();
+		event.begin();
+		return event;
+	} //end Object beginPass()
+	//-----------------------------------------------------
+
+
+	@Override
+	void endPass( Object span, String pass, int slice, int type, long nPixels ) {
+		if( span == null ) return;
+		PassEvent event = (PassEvent) span;
+		event.end();
+		if( !event.shouldCommit() ) return;
+		event.pass   = pass;
+		event.slice  = slice;
+		event.type   = typeName( type );
+		event.pixels = nPixels;
+		event.commit();
+	} //end void endPass(Object span, String pass, int slice, int type, long nPixels)
+	//-----------------------------------------------------
+
+}  //end class JfrTracer
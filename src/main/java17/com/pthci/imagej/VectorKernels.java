@@ -0,0 +1,90 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * Lane-wise versions of the {@link Kernels} loops, using the widest vectors the CPU has.
+ * Only compiled into META-INF/versions/17 of the multi-release jar, and only selected when the
+ * jdk.incubator.vector module is present. Results match the scalar loops, except that a float
+ * band whose minimum (or maximum) is zero may report it as -0.0 where the scalar loop reports
+ * 0.0 or the reverse. The tail of each range that does not fill a whole vector is left to them.
+ */
+class VectorKernels extends Kernels {
+	private static final VectorSpecies<Byte>  BYTES  = ByteVector.SPECIES_PREFERRED ;
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED ;
+
+
+	@Override
+	void minMax( byte[] pixels, int from, int to, int[] bandMin, int[] bandMax, int band ) {
+		//bytes are signed, so flip the top bit to make signed lane order match unsigned pixel order
+		ByteVector vectorMin = ByteVector.broadcast( BYTES, (byte)( bandMin[band] ^ 0x80 ) );
+		ByteVector vectorMax = ByteVector.broadcast( BYTES, (byte)( bandMax[band] ^ 0x80 ) );
+		int pixelPos = from;
+		for( int upper=from + BYTES.loopBound(to-from); pixelPos<upper; pixelPos+=BYTES.length() ) {
+			ByteVector v = ByteVector.fromArray( BYTES, pixels, pixelPos ).lanewise( VectorOperators.XOR, (byte)0x80 );
+			vectorMin = vectorMin.min( v );
+			vectorMax = vectorMax.max( v );
+		}
+		bandMin[band] = ( vectorMin.reduceLanes(VectorOperators.MIN) ^ 0x80 ) & 0xff ;
+		bandMax[band] = ( vectorMax.reduceLanes(VectorOperators.MAX) ^ 0x80 ) & 0xff ;
+		super.minMax( pixels, pixelPos, to, bandMin, bandMax, band );
+	} //end void minMax(byte[] pixels, int from, int to, int[] bandMin, int[] bandMax, int band)
+	//-----------------------------------------------------
+
+
+	@Override
+	void minMax( float[] pixels, int from, int to, float[] bandMin, float[] bandMax, int band ) {
+		FloatVector vectorMin = FloatVector.broadcast( FLOATS, bandMin[band] );
+		FloatVector vectorMax = FloatVector.broadcast( FLOATS, bandMax[band] );
+		int pixelPos = from;
+		for( int upper=from + FLOATS.loopBound(to-from); pixelPos<upper; pixelPos+=FLOATS.length() ) {
+			FloatVector v = FloatVector.fromArray( FLOATS, pixels, pixelPos );
+			//lane-wise min and max propagate NaN where the scalar loop skips it, so only take
+			//a finite lane that compares strictly lower (or higher)
+			VectorMask<Float> finite = v.test( VectorOperators.IS_FINITE );
+			VectorMask<Float> lower  = v.compare( VectorOperators.LT, vectorMin ).and( finite );
+			VectorMask<Float> higher = v.compare( VectorOperators.GT, vectorMax ).and( finite );
+			vectorMin = vectorMin.blend( v, lower  );
+			vectorMax = vectorMax.blend( v, higher );
+		}
+		float thisBandMin = bandMin[band] ;
+		float thisBandMax = bandMax[band] ;
+		for( int lane=0; lane<FLOATS.length(); lane++ ) {
+			if( vectorMin.lane(lane) < thisBandMin ) thisBandMin = vectorMin.lane(lane) ;
+			if( vectorMax.lane(lane) > thisBandMax ) thisBandMax = vectorMax.lane(lane) ;
+		}
+		bandMin[band] = thisBandMin ;
+		bandMax[band] = thisBandMax ;
+		super.minMax( pixels, pixelPos, to, bandMin, bandMax, band );
+	} //end void minMax(float[] pixels, int from, int to, float[] bandMin, float[] bandMax, int band)
+	//-----------------------------------------------------
+
+
+	@Override
+	void remap( float[] pixels, float[] levelled, int from, int to, float min, float gradient, float offset, float clipLow, float clipHigh ) {
+		int pixelPos = from;
+		for( int upper=from + FLOATS.loopBound(to-from); pixelPos<upper; pixelPos+=FLOATS.length() ) {
+			FloatVector.fromArray( FLOATS, pixels, pixelPos ).sub( min ).mul( gradient ).add( offset )
+				.max( clipLow ).min( clipHigh ).intoArray( levelled, pixelPos );
+		}
+		super.remap( pixels, levelled, pixelPos, to, min, gradient, offset, clipLow, clipHigh );
+	} //end void remap(float[] pixels, float[] levelled, int from, int to, float min, float gradient, float offset, float clipLow, float clipHigh)
+	//-----------------------------------------------------
+
+}  //end class VectorKernels
@@ -0,0 +1,113 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Cancelling stops every path between slices, and a path whose output would be incomplete
+ * leaves none behind.
+ */
+public class CancellationTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int N_SLICES = 6 ;
+
+
+	// A stack that cancels leveller as slice cancelAt is read
+	private static ImageStack stack( final AutoLevel_Slice leveller, final int cancelAt ) {
+		ImageStack stack = new ImageStack( 64, 48 ) {
+			@Override
+			public ImageProcessor getProcessor( int n ) {
+				if( n == cancelAt ) leveller.cancel();
+				return super.getProcessor( n );
+			}
+		};
+		for( int i=1; i<=N_SLICES; i++ ) {
+			short[] pixels = new short[64*48];
+			for( int p=0; p<pixels.length; p++ ) pixels[p] = (short)( 100*i + p % 1000 );
+			stack.addSlice( "slice "+i, new ShortProcessor( 64, 48, pixels, null ) );
+		}
+		return stack;
+	}
+
+
+	private File tiff() throws Exception {
+		File file = folder.newFile( "stack.tif" );
+		assertTrue( new FileSaver( new ImagePlus( "stack", stack(null, -1) ) ).saveAsTiffStack( file.getPath() ) );
+		return file;
+	}
+
+
+	@Test
+	public void streamedSaveDeletesThePartFile() throws Exception {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		File output = new File( folder.getRoot(), "levelled.tif" );
+		leveller.process( new ImagePlus( "stack", stack(leveller, 3) ), output.getPath() );
+		assertTrue( leveller.wasCancelled() );
+		assertFalse( output.exists() );
+	}
+
+
+	@Test
+	public void newImageIsNotReturned() {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.cancel();
+		assertNull( leveller.processToNewImage( new ImagePlus( "stack", stack(leveller, -1) ) ) );
+		assertTrue( leveller.wasCancelled() );
+	}
+
+
+	@Test
+	public void mappedLevelIntoNewFileDeletesIt() throws Exception {
+		File input  = tiff();
+		File output = new File( folder.getRoot(), "levelled.tif" );
+		byte[] before = Files.readAllBytes( input.toPath() );
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.cancel();
+		leveller.processFile( input.getPath(), output.getPath() );
+		assertTrue( leveller.wasCancelled() );
+		assertFalse( output.exists() );
+		assertArrayEquals( before, Files.readAllBytes( input.toPath() ) );
+	}
+
+
+	@Test
+	public void mappedLevelInPlaceLeavesTheFile() throws Exception {
+		File input = tiff();
+		byte[] before = Files.readAllBytes( input.toPath() );
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.cancel();
+		leveller.processFile( input.getPath(), null );
+		assertTrue( leveller.wasCancelled() );
+		assertArrayEquals( before, Files.readAllBytes( input.toPath() ) );
+	}
+
+}  //end public class CancellationTest
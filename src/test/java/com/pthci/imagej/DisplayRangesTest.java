@@ -0,0 +1,94 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import java.awt.EventQueue;
+import java.lang.reflect.Field;
+import java.util.List;
+
+import org.junit.Test;
+
+
+/**
+ * Levelling the display ranges of an image again replaces the ranges installed before.
+ */
+public class DisplayRangesTest {
+
+	// An image that notifies its listeners as the GUI would, which a headless one does not
+	private static final class ShownImage extends ImagePlus {
+		ShownImage() {
+			super( "ranges", stack() );
+		}
+
+		void shown( int n ) throws Exception {
+			setSlice( n );
+			notifyListeners( UPDATED );
+			EventQueue.invokeAndWait( () -> {} ); //listeners are notified on the event thread
+		}
+
+		void closed() throws Exception {
+			notifyListeners( CLOSED );
+			EventQueue.invokeAndWait( () -> {} );
+		}
+	}
+
+
+	private static ImageStack stack() {
+		ImageStack stack = new ImageStack( 4, 4 );
+		for( int i=0; i<3; i++ ) stack.addSlice( new ShortProcessor(4, 4) );
+		return stack;
+	}
+
+
+	// DisplayRanges among ImageJ's image listeners, which it keeps in a private static list
+	private static int listening() throws Exception {
+		Field field = ImagePlus.class.getDeclaredField( "listeners" );
+		field.setAccessible( true );
+		int count = 0;
+		for( Object listener : (List<?>)field.get(null) ) {
+			if( listener instanceof DisplayRanges ) count++;
+		}
+		return count;
+	}
+
+
+	@Test
+	public void reinstallingReplacesTheOldRanges() throws Exception {
+		ShownImage image = new ShownImage();
+		DisplayRanges first  = new DisplayRanges( image, new double[] { 0, 10, 20, 30 }, new double[] { 0, 100, 200, 300 } );
+		DisplayRanges second = new DisplayRanges( image, new double[] { 0,  1,  2,  3 }, new double[] { 0,   5,   6,   7 } );
+		first.install();
+		second.install();
+		assertSame( second, DisplayRanges.installed(image) );
+		assertEquals( 1, listening() );
+
+		//only the second ranges may still be listening, whatever order listeners are notified in
+		for( int n : new int[] { 2, 3, 1, 2 } ) {
+			image.shown( n );
+			assertEquals( n,   image.getDisplayRangeMin(), 0 );
+			assertEquals( n+4, image.getDisplayRangeMax(), 0 );
+		}
+
+		image.closed();
+		assertNull( DisplayRanges.installed(image) );
+		assertEquals( 0, listening() );
+	}
+
+}  //end public class DisplayRangesTest
@@ -0,0 +1,75 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+
+import org.junit.Test;
+
+
+/**
+ * 32-bit slices whose values, or target range, lie further apart than Float.MAX_VALUE level
+ * like any other rather than to NaN or infinity.
+ */
+public class FloatRangeTest {
+
+	private static ImagePlus image( float... pixels ) {
+		return new ImagePlus( "wide", new FloatProcessor( pixels.length, 1, pixels ) );
+	}
+
+
+	private static Object levelled( AutoLevel_Slice leveller, float... pixels ) {
+		return leveller.processToNewImage( image(pixels) ).getProcessor().getPixels();
+	}
+
+
+	@Test
+	public void rangeWiderThanFloatLevels() {
+		float[] levelled = (float[])levelled( new AutoLevel_Slice(), -3e38f, 3e38f, 0f, 1f );
+		assertArrayEquals( new float[] { 0f, 1f, 0.5f, 0.5f }, levelled, 1e-6f );
+	}
+
+
+	@Test
+	public void rangeWiderThanFloatConvertsTo8Bit() {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setConvertTo8Bit( true );
+		byte[] levelled = (byte[])levelled( leveller, -3e38f, 3e38f, 0f, 1f );
+		assertArrayEquals( new byte[] { 0, (byte)255, (byte)128, (byte)128 }, levelled );
+	}
+
+
+	@Test
+	public void targetWiderThanFloatLevels() {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setTargetRange( -3e38, 3e38 );
+		float[] levelled = (float[])levelled( leveller, 0f, 1f, 0.5f, 0.25f );
+		assertArrayEquals( new float[] { -3e38f, 3e38f, 0f, -1.5e38f }, levelled, 1e32f );
+	}
+
+
+	@Test
+	public void saturatedOutliersBeyondFloatClip() {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setSaturated( 10 );
+		float[] pixels = new float[100];
+		for( int i=0; i<pixels.length; i++ ) pixels[i] = i % 2;
+		pixels[0] = -3e38f; pixels[1] = 3e38f;
+		float[] levelled = (float[])levelled( leveller, pixels );
+		for( float value : levelled ) assertTrue( "levelled to "+value, value >= 0f && value <= 1f );
+	}
+
+}  //end public class FloatRangeTest
@@ -0,0 +1,137 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import org.junit.Test;
+
+
+/**
+ * Each grouping of a channel, z and time hyperstack levels exactly the planes of a group from
+ * one shared range, and the planes of other groups from ranges of their own.
+ */
+public class GroupingTest {
+	private static final int N_CHANNELS = 2 ;
+	private static final int N_Z        = 3 ;
+	private static final int N_FRAMES   = 2 ;
+	private static final int SPREAD     = 50 ;
+
+
+	// Plane i holds only the values 100*i and 100*i + SPREAD, so the range of any set of
+	// planes is set by its lowest and highest plane numbers and differs from every other set's
+	private static ImagePlus hyperstack() {
+		ImageStack stack = new ImageStack( 16, 8 );
+		for( int i=1; i<=N_CHANNELS*N_Z*N_FRAMES; i++ ) {
+			float[] pixels = new float[16*8];
+			for( int p=0; p<pixels.length; p++ ) pixels[p] = 100*i + ( p % 2 ) * SPREAD;
+			stack.addSlice( "plane "+i, new FloatProcessor( 16, 8, pixels ) );
+		}
+		ImagePlus image = new ImagePlus( "hyperstack", stack );
+		image.setDimensions( N_CHANNELS, N_Z, N_FRAMES );
+		image.setOpenAsHyperStack( true );
+		return image;
+	}
+
+
+	// The group of the plane at c, z, t that the grouping should level it with
+	private static String group( AutoLevel_Slice.Grouping grouping, int c, int z, int t ) {
+		switch( grouping ) {
+			case STACK             : return "stack";
+			case CHANNEL           : return "c"+c;
+			case CHANNEL_VOLUME    : return "c"+c+" t"+t;
+			case TIMEPOINT_VOLUME  : return "t"+t;
+			case CHANNEL_OVER_TIME : return "c"+c+" z"+z;
+			default                : return "c"+c+" z"+z+" t"+t;
+		}
+	}
+
+
+	// The range plane i was levelled from, read back from the levelled values of its two
+	// input values: the low one levels to (low - min)/(max - min), the high one likewise
+	private static double[] rangeOf( ImagePlus levelled, int i ) {
+		float[] pixels = (float[])levelled.getStack().getPixels( i );
+		double low   = 100*i;
+		double scale = ( pixels[1] - pixels[0] ) / SPREAD;
+		double min   = low - pixels[0] / scale;
+		return new double[] { min, min + 1 / scale };
+	}
+
+
+	private static void assertGroups( AutoLevel_Slice.Grouping grouping ) {
+		ImagePlus image = hyperstack();
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setGrouping( grouping );
+		ImagePlus levelled = leveller.processToNewImage( image );
+
+		int nPlanes = image.getStackSize();
+		String[]   groups = new String[ nPlanes+1 ];
+		double[][] ranges = new double[ nPlanes+1 ][];
+		for( int t=1; t<=N_FRAMES; t++ ) {
+			for( int z=1; z<=N_Z; z++ ) {
+				for( int c=1; c<=N_CHANNELS; c++ ) {
+					int i = image.getStackIndex( c, z, t );
+					groups[i] = group( grouping, c, z, t );
+					ranges[i] = rangeOf( levelled, i );
+				}
+			}
+		}
+		for( int i=1; i<=nPlanes; i++ ) {
+			for( int j=1; j<=nPlanes; j++ ) {
+				String planes = grouping.name()+" planes "+i+" and "+j;
+				if( groups[i].equals(groups[j]) ) {
+					assertEquals( planes+" min", ranges[i][0], ranges[j][0], 1e-2 );
+					assertEquals( planes+" max", ranges[i][1], ranges[j][1], 1e-2 );
+				} else {
+					assertTrue( planes+" share a range", Math.abs( ranges[i][0] - ranges[j][0] ) > 1
+					                                  || Math.abs( ranges[i][1] - ranges[j][1] ) > 1 );
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void wholeStack() {
+		assertGroups( AutoLevel_Slice.Grouping.STACK );
+	}
+
+
+	@Test
+	public void eachChannel() {
+		assertGroups( AutoLevel_Slice.Grouping.CHANNEL );
+	}
+
+
+	@Test
+	public void eachChannelVolume() {
+		assertGroups( AutoLevel_Slice.Grouping.CHANNEL_VOLUME );
+	}
+
+
+	@Test
+	public void eachTimepointVolume() {
+		assertGroups( AutoLevel_Slice.Grouping.TIMEPOINT_VOLUME );
+	}
+
+
+	@Test
+	public void eachChannelOverTime() {
+		assertGroups( AutoLevel_Slice.Grouping.CHANNEL_OVER_TIME );
+	}
+
+}  //end public class GroupingTest
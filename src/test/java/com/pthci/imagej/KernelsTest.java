@@ -0,0 +1,102 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * The vectorised kernels give the same results as the scalar ones, over ranges that start and
+ * end off a vector boundary and with NaN and infinities mixed in. Skipped where the JVM has no
+ * jdk.incubator.vector, in which case Kernels.INSTANCE is the scalar version anyway.
+ */
+public class KernelsTest {
+	private static final Kernels SCALAR = new Kernels();
+	private static final Kernels VECTOR = Kernels.INSTANCE;
+
+	private static final int[][] RANGES = { {0,1}, {0,7}, {3,67}, {0,1000}, {5,4093}, {1,4096} };
+
+
+	private static float[] floats( Random random ) {
+		float[] pixels = new float[4096];
+		for( int i=0; i<pixels.length; i++ ) {
+			int kind = random.nextInt(50);
+			if     ( kind == 0 ) pixels[i] = Float.NaN;
+			else if( kind == 1 ) pixels[i] = Float.POSITIVE_INFINITY;
+			else if( kind == 2 ) pixels[i] = Float.NEGATIVE_INFINITY;
+			else                 pixels[i] = (random.nextFloat() - 0.5f)*1000f;
+		}
+		return pixels;
+	}
+
+
+	@Test
+	public void minMaxOfBytesMatchesScalar() {
+		assumeTrue( VECTOR.getClass() != Kernels.class );
+		Random random = new Random( 1 );
+		byte[] pixels = new byte[4096];
+		for( int trial=0; trial<20; trial++ ) {
+			random.nextBytes( pixels );
+			for( int[] range : RANGES ) {
+				int[] scalarMin = { 255 }, scalarMax = { 0 }, vectorMin = { 255 }, vectorMax = { 0 };
+				SCALAR.minMax( pixels, range[0], range[1], scalarMin, scalarMax, 0 );
+				VECTOR.minMax( pixels, range[0], range[1], vectorMin, vectorMax, 0 );
+				assertArrayEquals( scalarMin, vectorMin );
+				assertArrayEquals( scalarMax, vectorMax );
+			}
+		}
+	}
+
+
+	@Test
+	public void minMaxOfFloatsMatchesScalar() {
+		assumeTrue( VECTOR.getClass() != Kernels.class );
+		Random random = new Random( 2 );
+		for( int trial=0; trial<20; trial++ ) {
+			float[] pixels = floats( random );
+			for( int[] range : RANGES ) {
+				float[] scalarMin = { Float.POSITIVE_INFINITY }, scalarMax = { Float.NEGATIVE_INFINITY };
+				float[] vectorMin = { Float.POSITIVE_INFINITY }, vectorMax = { Float.NEGATIVE_INFINITY };
+				SCALAR.minMax( pixels, range[0], range[1], scalarMin, scalarMax, 0 );
+				VECTOR.minMax( pixels, range[0], range[1], vectorMin, vectorMax, 0 );
+				assertArrayEquals( scalarMin, vectorMin, 0f );
+				assertArrayEquals( scalarMax, vectorMax, 0f );
+			}
+		}
+	}
+
+
+	@Test
+	public void remapOfFloatsMatchesScalar() {
+		assumeTrue( VECTOR.getClass() != Kernels.class );
+		Random random = new Random( 3 );
+		float[][] clips = { { Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY }, { 0f, 1f }, { -1f, 1f } };
+		for( int trial=0; trial<20; trial++ ) {
+			float[] pixels = floats( random );
+			for( float[] clip : clips ) {
+				for( int[] range : RANGES ) {
+					float[] scalar = new float[ pixels.length ];
+					float[] vector = new float[ pixels.length ];
+					SCALAR.remap( pixels, scalar, range[0], range[1], -123.5f, 0.00137f, 0.25f, clip[0], clip[1] );
+					VECTOR.remap( pixels, vector, range[0], range[1], -123.5f, 0.00137f, 0.25f, clip[0], clip[1] );
+					assertArrayEquals( scalar, vector, 0f );
+				}
+			}
+		}
+	}
+
+}  //end public class KernelsTest
@@ -0,0 +1,122 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+
+/**
+ * The integer level tables are bit-exact with the double and Math.round expression they replaced.
+ * <p>
+ * A ramp entry depends only on its distance n from min, the range max-min and the top value,
+ * never on where min lies, so checking every range 0 to 65535 from min 0 covers every min and
+ * max a full 16-bit table can hold. Smaller tops are checked on every range to 4096 and a
+ * stride of the wider ones, to keep the run short.
+ * </p>
+ */
+public class LevelLutTest {
+
+	// The table entry as it was computed before the integer ramp
+	private static int doubleRamp( int n, int thisSliceMin, int thisSliceMax, int top ) {
+		double gradient = (double)( (double)top / ( (double)thisSliceMax - (double)thisSliceMin ) );
+		return (int)Math.round( ( (thisSliceMin+n) -(double)thisSliceMin )*gradient );
+	}
+
+
+	// The whole 8-bit table as it was built before, clamped outside [min,max]
+	private static byte[] doubleLut8( int thisSliceMin, int thisSliceMax ) {
+		byte[] lut = new byte[256];
+		double gradient = (double)( (double)255.0 / ( (double)thisSliceMax - (double)thisSliceMin ) );
+		long levelled ;
+		for( int value=0; value<256; value++ ) {
+			levelled   = Math.round( ( value -(double)thisSliceMin )*gradient ) ;
+			lut[value] = (byte)( levelled < 0 ? 0 : levelled > 255 ? 255 : levelled );
+		}
+		return lut;
+	}
+
+
+	@Test
+	public void levelLut8MatchesDoubleForEveryMinAndMax() {
+		for( int min=0; min<256; min++ ) {
+			for( int max=min; max<256; max++ ) {
+				assertArrayEquals( "min "+min+" max "+max, doubleLut8(min, max), AutoLevel_Slice.levelLut8(min, max) );
+			}
+		}
+	}
+
+
+	@Test
+	public void levelRampMatchesDoubleForEveryRange() {
+		checkRamps( 65535, 1 );
+	}
+
+
+	// every range to 4096, then every 61st, of each smaller bit depth a 16-bit image can be levelled to
+	@Test
+	public void levelRampMatchesDoubleForEveryBitDepth() {
+		for( int bits=8; bits<16; bits++ ) checkRamps( (1 << bits) - 1, 61 );
+	}
+
+
+	private static void checkRamps( int top, int wideStride ) {
+		short[] lut = new short[65536];
+		for( int range=0; range<65536; range += range < 4096 ? 1 : wideStride ) {
+			AutoLevel_Slice.levelRamp( 0, range, top, lut );
+			//doubleRamp() with the gradient hoisted, ( v -(double)min ) is exactly n
+			double gradient = (double)top / (double)range ;
+			for( int n=0; n<=range; n++ ) {
+				if( (lut[n] & 0xffff) != (int)Math.round( n*gradient ) ) {
+					assertEquals( "top "+top+" range "+range+" n "+n, doubleRamp(n, 0, range, top), lut[n] & 0xffff );
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void levelRampDoesNotDependOnMin() {
+		short[] atZero = new short[65536];
+		short[] moved  = new short[65536];
+		int[][] ranges = { {0,1}, {0,255}, {0,4095}, {0,40000}, {0,65535} };
+		int[]   mins   = { 1, 17, 1000, 25535 };
+		for( int[] range : ranges ) {
+			for( int min : mins ) {
+				int max = min + range[1];
+				if( max > 65535 ) continue;
+				AutoLevel_Slice.levelRamp( 0, range[1], 65535, atZero );
+				AutoLevel_Slice.levelRamp( min, max, 65535, moved );
+				for( int n=0; n<=range[1]; n++ ) {
+					assertEquals( "min "+min+" n "+n, doubleRamp(n, min, max, 65535), moved[min+n] & 0xffff );
+					assertEquals( atZero[n], moved[min+n] );
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void levelLut16SaturatesOutsideTheRange() {
+		short[] lut = AutoLevel_Slice.levelLut16( 100, 4195, 4095 );
+		assertEquals( 0,    lut[0]     & 0xffff );
+		assertEquals( 0,    lut[100]   & 0xffff );
+		assertEquals( 4095, lut[4195]  & 0xffff );
+		assertEquals( 4095, lut[65535] & 0xffff );
+		lut = AutoLevel_Slice.levelLut16( 7, 7, 65535 );
+		assertEquals( 0,     lut[7] & 0xffff );
+		assertEquals( 65535, lut[8] & 0xffff );
+	}
+
+}  //end public class LevelLutTest
@@ -0,0 +1,137 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Levelling a TIFF through its memory mapping writes exactly the pixels that opening it and
+ * levelling the image does, into a new file or in place, per slice or for the whole stack,
+ * with and without saturation, in either byte order.
+ */
+public class MappedFileTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int N_SLICES = 5 ;
+	private static final int WIDTH    = 300 ;
+	private static final int HEIGHT   = 200 ;
+
+	private final int     threads = Prefs.getThreads();
+	private final boolean intel   = Prefs.intelByteOrder;
+
+
+	@After
+	public void restorePrefs() {
+		Prefs.setThreads( threads );
+		Prefs.intelByteOrder = intel;
+	}
+
+
+	// Noise over a different range in each slice, with a few outliers for saturation to clip
+	private static ImagePlus stack( int bitDepth ) {
+		Random random = new Random( bitDepth );
+		int top = bitDepth == 8 ? 255 : 65535;
+		ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for( int i=1; i<=N_SLICES; i++ ) {
+			ImageProcessor ip = bitDepth == 8 ? new ByteProcessor( WIDTH, HEIGHT ) : new ShortProcessor( WIDTH, HEIGHT );
+			int low  = top * i / 20;
+			int span = top * ( 4 + i ) / 20;
+			for( int p=0; p<WIDTH*HEIGHT; p++ ) {
+				ip.set( p, random.nextInt(100) == 0 ? random.nextInt( top+1 ) : low + random.nextInt( span ) );
+			}
+			stack.addSlice( "slice "+i, ip );
+		}
+		return new ImagePlus( "stack", stack );
+	}
+
+
+	private static AutoLevel_Slice leveller( boolean wholeStack, double saturated ) {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setWholeStack( wholeStack );
+		leveller.setSaturated( saturated );
+		return leveller;
+	}
+
+
+	private static void assertSamePixels( String message, ImagePlus expected, ImagePlus actual ) {
+		assertEquals( message, N_SLICES, actual.getStackSize() );
+		for( int i=1; i<=N_SLICES; i++ ) {
+			Object want = expected.getStack().getPixels( i );
+			Object got  = actual.getStack().getPixels( i );
+			if( want instanceof byte[] ) assertArrayEquals( message+" slice "+i, (byte[])want,  (byte[])got );
+			else                         assertArrayEquals( message+" slice "+i, (short[])want, (short[])got );
+		}
+	}
+
+
+	private void assertMappedMatchesLoaded( int bitDepth ) throws Exception {
+		for( boolean intelByteOrder : new boolean[] { false, true } ) {
+			Prefs.intelByteOrder = intelByteOrder;
+			File input = folder.newFile();
+			assertTrue( new FileSaver( stack(bitDepth) ).saveAsTiffStack( input.getPath() ) );
+			assertTrue( AutoLevel_Slice.canProcessFile( input.getPath() ) );
+			for( boolean wholeStack : new boolean[] { false, true } ) {
+				for( double saturated : new double[] { 0, 1 } ) {
+					String message = bitDepth+"-bit "+( intelByteOrder ? "little" : "big" )+" endian "
+					               + ( wholeStack ? "whole stack" : "per slice" )+" "+saturated+"% saturated";
+					ImagePlus loaded = IJ.openImage( input.getPath() );
+					leveller( wholeStack, saturated ).process( loaded );
+
+					File output = new File( folder.getRoot(), "levelled.tif" );
+					leveller( wholeStack, saturated ).processFile( input.getPath(), output.getPath() );
+					assertSamePixels( message+" new file", loaded, IJ.openImage( output.getPath() ) );
+
+					File inPlace = new File( folder.getRoot(), "in place.tif" );
+					Files.copy( input.toPath(), inPlace.toPath(), StandardCopyOption.REPLACE_EXISTING );
+					leveller( wholeStack, saturated ).processFile( inPlace.getPath(), null );
+					assertSamePixels( message+" in place", loaded, IJ.openImage( inPlace.getPath() ) );
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void bytesMatchLoadedImage() throws Exception {
+		assertMappedMatchesLoaded( 8 );
+	}
+
+
+	@Test
+	public void shortsMatchLoadedImage() throws Exception {
+		assertMappedMatchesLoaded( 16 );
+	}
+
+}  //end public class MappedFileTest
@@ -0,0 +1,110 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Levelling on several threads, whether slices are shared out between them or large slices
+ * are cut into row bands, gives exactly the pixels levelling on one thread does.
+ */
+public class ParallelTest {
+	private static final int[] TYPES = { ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32, ImagePlus.COLOR_RGB };
+
+	private final int threads = Prefs.getThreads();
+
+
+	@After
+	public void restoreThreads() {
+		Prefs.setThreads( threads );
+	}
+
+
+	// Noise over a different range in each slice, with a few outliers for saturation to clip
+	private static ImagePlus stack( int type, int width, int height, int nSlices ) {
+		Random random = new Random( type );
+		ImageStack stack = new ImageStack( width, height );
+		for( int i=1; i<=nSlices; i++ ) {
+			ImageProcessor ip ;
+			if     ( type == ImagePlus.GRAY8  ) ip = new ByteProcessor( width, height );
+			else if( type == ImagePlus.GRAY16 ) ip = new ShortProcessor( width, height );
+			else if( type == ImagePlus.GRAY32 ) ip = new FloatProcessor( width, height );
+			else                                ip = new ColorProcessor( width, height );
+			for( int p=0; p<width*height; p++ ) {
+				int value = random.nextInt(100) == 0 ? random.nextInt( 256 ) : 10*i + random.nextInt( 150 );
+				if     ( type == ImagePlus.GRAY32    ) ip.setf( p, value*1.5f - 40 );
+				else if( type == ImagePlus.COLOR_RGB ) ip.set( p, value << 16 | (255-value) << 8 | value/2 );
+				else                                   ip.set( p, type == ImagePlus.GRAY16 ? value*100 : value );
+			}
+			stack.addSlice( "slice "+i, ip );
+		}
+		return new ImagePlus( "stack", stack );
+	}
+
+
+	private static ImagePlus levelled( ImagePlus image, int threads, String mode ) {
+		Prefs.setThreads( threads );
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		if( mode.equals("whole stack") ) leveller.setWholeStack( true );
+		if( mode.equals("saturated")   ) leveller.setSaturated( 1 );
+		return leveller.processToNewImage( image );
+	}
+
+
+	private static void assertParallelMatchesSerial( int width, int height, int nSlices ) {
+		for( int type : TYPES ) {
+			ImagePlus image = stack( type, width, height, nSlices );
+			for( String mode : new String[] { "per slice", "whole stack", "saturated" } ) {
+				ImageStack serial   = levelled( image, 1, mode ).getStack();
+				ImageStack parallel = levelled( image, 4, mode ).getStack();
+				assertEquals( nSlices, parallel.getSize() );
+				for( int i=1; i<=nSlices; i++ ) {
+					String message = "type "+type+" "+mode+" slice "+i;
+					Object want = serial.getPixels( i ), got = parallel.getPixels( i );
+					if     ( want instanceof byte[]  ) assertArrayEquals( message, (byte[]) want, (byte[]) got );
+					else if( want instanceof short[] ) assertArrayEquals( message, (short[])want, (short[])got );
+					else if( want instanceof float[] ) assertArrayEquals( message, (float[])want, (float[])got, 0f );
+					else                               assertArrayEquals( message, (int[])  want, (int[])  got );
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void slicesOnThreadsMatchOneThread() {
+		assertParallelMatchesSerial( 200, 150, 9 );
+	}
+
+
+	@Test
+	public void rowBandsMatchOneThread() {
+		assertParallelMatchesSerial( 2048, 2048, 2 );
+	}
+
+}  //end public class ParallelTest
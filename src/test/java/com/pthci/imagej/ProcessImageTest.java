@@ -0,0 +1,76 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageStatistics;
+import ij.process.ShortProcessor;
+
+import org.junit.Test;
+
+
+/**
+ * process(ImagePlus) levels an image on a fresh instance, without setup() or run() first.
+ */
+public class ProcessImageTest {
+
+	private static ImagePlus stack() {
+		ImageStack stack = new ImageStack( 32, 16 );
+		for( int i=1; i<=3; i++ ) {
+			short[] pixels = new short[32*16];
+			for( int p=0; p<pixels.length; p++ ) pixels[p] = (short)( 1000*i + p );
+			stack.addSlice( "slice "+i, new ShortProcessor( 32, 16, pixels, null ) );
+		}
+		return new ImagePlus( "stack", stack );
+	}
+
+
+	@Test
+	public void levelsEverySliceInPlace() {
+		ImagePlus image = stack();
+		new AutoLevel_Slice().process( image );
+		for( int i=1; i<=3; i++ ) {
+			ImageStatistics stats = image.getStack().getProcessor(i).getStats();
+			assertEquals( "slice "+i, 0,     stats.min, 0 );
+			assertEquals( "slice "+i, 65535, stats.max, 0 );
+		}
+	}
+
+
+	@Test
+	public void levelsToTheImageBitDepth() {
+		ImagePlus image = stack();
+		image.setProp( "BitDepth", "12" );
+		new AutoLevel_Slice().process( image );
+		assertEquals( 4095, image.getStack().getProcessor(2).getStats().max, 0 );
+	}
+
+
+	@Test
+	public void convertsTo8Bit() {
+		ImagePlus image = stack();
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setConvertTo8Bit( true );
+		leveller.process( image );
+		assertEquals( 8, image.getBitDepth() );
+		assertEquals( 3, image.getStackSize() );
+		assertTrue( "closing should ask to save", image.changes );
+		ImageStatistics stats = image.getStack().getProcessor(3).getStats();
+		assertEquals( 0,   stats.min, 0 );
+		assertEquals( 255, stats.max, 0 );
+	}
+
+}  //end public class ProcessImageTest
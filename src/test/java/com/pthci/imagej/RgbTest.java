@@ -0,0 +1,114 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Levelling packed RGB pixels in place gives the pixels of the ColorProcessor round trip it
+ * replaced: split the slice into red, green and blue byte planes, level each as an 8-bit
+ * slice, and pack them back with opaque alpha.
+ */
+public class RgbTest {
+	private static final int WIDTH    = 300 ;
+	private static final int HEIGHT   = 200 ;
+	private static final int N_SLICES = 3 ;
+
+	private final int threads = Prefs.getThreads();
+
+
+	@After
+	public void restoreThreads() {
+		Prefs.setThreads( threads );
+	}
+
+
+	// Channels over different ranges in each slice, with stray alpha and a few outliers
+	private static ImagePlus stack() {
+		Random random = new Random( 5 );
+		ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for( int i=1; i<=N_SLICES; i++ ) {
+			int[] pixels = new int[ WIDTH*HEIGHT ];
+			for( int p=0; p<pixels.length; p++ ) {
+				int r = 20*i + random.nextInt( 100 );
+				int g = random.nextInt( 40*i );
+				int b = random.nextInt(200) == 0 ? random.nextInt( 256 ) : 100 + random.nextInt( 50 );
+				pixels[p] = random.nextInt( 256 ) << 24 | r << 16 | g << 8 | b;
+			}
+			stack.addSlice( "slice "+i, new ColorProcessor( WIDTH, HEIGHT, pixels ) );
+		}
+		return new ImagePlus( "rgb", stack );
+	}
+
+
+	private static AutoLevel_Slice leveller( double saturated ) {
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setSaturated( saturated );
+		return leveller;
+	}
+
+
+	// One channel levelled as the 8-bit slice the ColorProcessor round trip made of it
+	private static byte[] levelled( byte[] channel, double saturated ) {
+		ImagePlus plane = new ImagePlus( "channel", new ByteProcessor( WIDTH, HEIGHT, channel ) );
+		return (byte[])leveller( saturated ).processToNewImage( plane ).getProcessor().getPixels();
+	}
+
+
+	private static int[] roundTrip( int[] pixels, double saturated ) {
+		ColorProcessor cp = new ColorProcessor( WIDTH, HEIGHT, pixels.clone() );
+		byte[] R = new byte[ WIDTH*HEIGHT ];
+		byte[] G = new byte[ WIDTH*HEIGHT ];
+		byte[] B = new byte[ WIDTH*HEIGHT ];
+		cp.getRGB( R, G, B );
+		cp.setRGB( levelled(R, saturated), levelled(G, saturated), levelled(B, saturated) );
+		return (int[])cp.getPixels();
+	}
+
+
+	private static void assertMatchesRoundTrip( int threads, double saturated ) {
+		Prefs.setThreads( threads );
+		ImagePlus image = stack();
+		ImageStack levelled = leveller( saturated ).processToNewImage( image ).getStack();
+		for( int i=1; i<=N_SLICES; i++ ) {
+			assertArrayEquals( threads+" threads "+saturated+"% saturated slice "+i,
+				roundTrip( (int[])image.getStack().getPixels(i), saturated ), (int[])levelled.getPixels(i) );
+		}
+	}
+
+
+	@Test
+	public void matchesColorProcessorRoundTrip() {
+		assertMatchesRoundTrip( 1, 0 );
+		assertMatchesRoundTrip( 4, 0 );
+	}
+
+
+	@Test
+	public void saturatedMatchesColorProcessorRoundTrip() {
+		assertMatchesRoundTrip( 1, 1 );
+		assertMatchesRoundTrip( 4, 1 );
+	}
+
+}  //end public class RgbTest
@@ -0,0 +1,117 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * Sampled statistics give display ranges close to those of a full scan, and levelling pixels
+ * with only previews sampled uses the full scan, never the samples.
+ */
+public class SamplingTest {
+	private static final int SIZE = 1000 ;
+
+
+	// A gradient across the slice under noise, with sparse bright and dark outliers
+	private static ImageProcessor slice( int type ) {
+		ImageProcessor ip ;
+		if     ( type == ImagePlus.GRAY8  ) ip = new ByteProcessor( SIZE, SIZE );
+		else if( type == ImagePlus.GRAY16 ) ip = new ShortProcessor( SIZE, SIZE );
+		else                                ip = new FloatProcessor( SIZE, SIZE );
+		double scale = type == ImagePlus.GRAY8 ? 1 : type == ImagePlus.GRAY16 ? 200 : 0.01;
+		Random random = new Random( type );
+		for( int p=0; p<SIZE*SIZE; p++ ) {
+			double value = 40 + 120.0 * ( p % SIZE ) / SIZE + 40 * random.nextDouble();
+			if( random.nextInt(500) == 0 ) value = random.nextBoolean() ? 5 : 250;
+			ip.setf( p, (float)( type == ImagePlus.GRAY32 ? value*scale : Math.round(value*scale) ) );
+		}
+		return ip;
+	}
+
+
+	// The display range levelled from every pixel, or a sample of them
+	private static double[] displayRange( ImageProcessor ip, double saturated, double fraction, boolean jittered ) {
+		ImagePlus image = new ImagePlus( "slice", ip.duplicate() );
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setSaturated( saturated );
+		leveller.setSampling( fraction, jittered );
+		leveller.processDisplayRange( image );
+		DisplayRanges.installed( image ).imageClosed( image ); //stop listening, as closing the image would
+		return new double[] { image.getDisplayRangeMin(), image.getDisplayRangeMax() };
+	}
+
+
+	@Test
+	public void sampledRangesAreCloseToFullScan() {
+		for( int type : new int[] { ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32 } ) {
+			ImageProcessor ip = slice( type );
+			for( double saturated : new double[] { 0, 1 } ) {
+				double[] full = displayRange( ip, saturated, 1, false );
+				for( double fraction : new double[] { 0.1, 0.01 } ) {
+					//a percentile of 10,000 samples is good to a couple of percent of the range
+					double tolerance = ( fraction < 0.1 ? 0.02 : 0.01 ) * ( full[1] - full[0] );
+					for( boolean jittered : new boolean[] { false, true } ) {
+						String message = "type "+type+" "+saturated+"% saturated, "+fraction+( jittered ? " jittered" : " strided" );
+						double[] sampled = displayRange( ip, saturated, fraction, jittered );
+						assertEquals( message+" low",  full[0], sampled[0], tolerance );
+						assertEquals( message+" high", full[1], sampled[1], tolerance );
+						assertTrue( message+" wider than the full scan", sampled[0] >= full[0] && sampled[1] <= full[1] || saturated > 0 );
+					}
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void committingUsesTheFullScan() {
+		//a ramp whose extremes are two pixels the strided samples, one per 100, pass over
+		short[] pixels = new short[ 200*100 ];
+		for( int p=0; p<pixels.length; p++ ) pixels[p] = (short)( 1000 + p % 1000 );
+		pixels[1] = 0;
+		pixels[2] = (short)60000;
+		ImageProcessor ip = new ShortProcessor( 200, 100, pixels, null );
+		SliceStats sampled = new StatsSampler( 0.01, false ).stats( pixels, ImagePlus.GRAY16, 200, 100 );
+		assertTrue( "samples miss the extremes", sampled.min[0] > 0 && sampled.max[0] < 60000 );
+
+		short[] full = (short[])new AutoLevel_Slice().processToNewImage( new ImagePlus( "full", ip.duplicate() ) ).getProcessor().getPixels();
+
+		AutoLevel_Slice committing = new AutoLevel_Slice();
+		committing.setSampling( 0.01, false );
+		committing.setFullScanToCommit( true );
+		ImagePlus image = new ImagePlus( "committed", ip.duplicate() );
+		committing.process( image );
+		assertArrayEquals( full, (short[])image.getProcessor().getPixels() );
+
+		AutoLevel_Slice fromSamples = new AutoLevel_Slice();
+		fromSamples.setSampling( 0.01, false );
+		fromSamples.setFullScanToCommit( false );
+		short[] sampledLevels = (short[])fromSamples.processToNewImage( new ImagePlus( "sampled", ip.duplicate() ) ).getProcessor().getPixels();
+		assertFalse( "levelling from the samples differs", Arrays.equals( full, sampledLevels ) );
+	}
+
+}  //end public class SamplingTest
@@ -0,0 +1,83 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * The bit depth of a 16-bit image is found wherever acquisition software tends to put it,
+ * and the image's own metadata wins over ImageJ's global 16-bit range option.
+ */
+public class SignificantBitsTest {
+
+	private static ImagePlus image() {
+		return new ImagePlus( "camera", new ShortProcessor( 4, 4 ) );
+	}
+
+
+	@After
+	public void resetRange() {
+		ImagePlus.setDefault16bitRange( 0 );
+	}
+
+
+	@Test
+	public void noMetadataIsSixteenBits() {
+		assertEquals( 16, AutoLevel_Slice.significantBits( image() ) );
+		assertEquals( 16, AutoLevel_Slice.significantBits( null ) );
+	}
+
+
+	@Test
+	public void propertiesAreRead() {
+		ImagePlus image = image();
+		image.setProp( "BitDepth", "12" );
+		assertEquals( 12, AutoLevel_Slice.significantBits( image ) );
+		image = image();
+		image.setProperty( "SignificantBits", Integer.valueOf(10) );
+		assertEquals( 10, AutoLevel_Slice.significantBits( image ) );
+	}
+
+
+	@Test
+	public void infoTextIsRead() {
+		assertEquals( 12, AutoLevel_Slice.bitsIn( "Camera: Hamamatsu\nBitDepth: 12\n" ) );
+		assertEquals( 14, AutoLevel_Slice.bitsIn( "BitsPerPixel = 14" ) );
+		assertEquals( 12, AutoLevel_Slice.bitsIn( "{\"Summary\":{\"Channels\":1,\"BitDepth\": 12,\"Width\":2048}}" ) );
+		assertEquals( 11, AutoLevel_Slice.bitsIn( "<Pixels ID=\"Pixels:0\" SignificantBits=\"11\" Type=\"uint16\"/>" ) );
+		assertEquals( 12, AutoLevel_Slice.bitsIn( "BitDepth: 32\nSignificantBits=\"12\"" ) ); //32 is no GRAY16 depth
+		assertEquals( 0,  AutoLevel_Slice.bitsIn( "CameraBitDepth: 12" ) );
+		assertEquals( 0,  AutoLevel_Slice.bitsIn( null ) );
+
+		ImagePlus image = image();
+		image.setProperty( "Info", "{\"BitDepth\":12}" );
+		assertEquals( 12, AutoLevel_Slice.significantBits( image ) );
+	}
+
+
+	@Test
+	public void imageMetadataBeatsTheGlobalOption() {
+		ImagePlus.setDefault16bitRange( 14 );
+		assertEquals( 14, AutoLevel_Slice.significantBits( image() ) );
+		ImagePlus image = image();
+		image.setProp( "BitDepth", "12" );
+		assertEquals( 12, AutoLevel_Slice.significantBits( image ) );
+	}
+
+}  //end public class SignificantBitsTest
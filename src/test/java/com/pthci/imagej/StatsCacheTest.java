@@ -0,0 +1,126 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Sidecar files read back the statistics they were written with, and damaged ones read as empty.
+ */
+public class StatsCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	private static Map<Long,SliceStats> sample() {
+		int[] gray = new int[256];
+		gray[12] = 5; gray[200] = 7;
+		int[] r = new int[256], g = new int[256], b = new int[256];
+		r[1] = 1; g[2] = 2; b[255] = 3;
+		long[] floatKeys = new long[65536];
+		floatKeys[SliceStats.floatBin(-0.5f)] = 4; floatKeys[SliceStats.floatBin(2.5f)] = 9;
+
+		Map<Long,SliceStats> stats = new LinkedHashMap<>();
+		stats.put( 1L, SliceStats.fromHistograms(gray) );
+		stats.put( 2L, SliceStats.fromHistograms(r, g, b) );
+		stats.put( 3L, new SliceStats( new double[] { -0.5 }, new double[] { 2.5 }, new long[][] { floatKeys }, true ) );
+		stats.put( 4L, new SliceStats( 3, 4000 ) );
+		return stats;
+	}
+
+
+	@Test
+	public void sidecarRoundTrips() throws Exception {
+		File sidecar = folder.newFile( "image.tif.levels" );
+		Map<Long,SliceStats> written = sample();
+		StatsCache.save( sidecar, written );
+
+		StatsCache cache = new StatsCache( 1L << 24 );
+		assertEquals( written.size(), cache.load(sidecar) );
+		for( Map.Entry<Long,SliceStats> entry : written.entrySet() ) {
+			SliceStats expected = entry.getValue();
+			SliceStats read     = cache.get( entry.getKey(), false );
+			assertArrayEquals( expected.min, read.min, 0 );
+			assertArrayEquals( expected.max, read.max, 0 );
+			assertEquals( expected.floatBins, read.floatBins );
+			if( expected.histogram == null ) {
+				assertNull( read.histogram );
+				continue;
+			}
+			for( int c=0; c<expected.channels(); c++ ) assertArrayEquals( expected.histogram[c], read.histogram[c] );
+		}
+	}
+
+
+	// Overwrite four bytes at offset with value
+	private static void patch( File file, long offset, int value ) throws Exception {
+		try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+			raf.seek( offset );
+			raf.writeInt( value );
+		}
+	}
+
+
+	// offset of the bin count of the first entry's histogram: header, key, entry header, min and max
+	private static final long FIRST_LENGTH = 12 + 8 + 3 + 16 ;
+
+
+	@Test
+	public void corruptLengthsReadAsEmpty() throws Exception {
+		int[][] patches = {
+			{ (int)FIRST_LENGTH,   Integer.MAX_VALUE }, //bin count far too big
+			{ (int)FIRST_LENGTH,   -1 },                //negative bin count
+			{ (int)FIRST_LENGTH,   1000 },              //neither 256 nor 65536
+			{ (int)FIRST_LENGTH+4, Integer.MAX_VALUE }, //more bins set than the file holds
+			{ (int)FIRST_LENGTH+8, 70000 },             //a bin past the end of the histogram
+			{ 8,                   Integer.MAX_VALUE }, //more entries than the file holds
+		};
+		for( int[] change : patches ) {
+			File sidecar = folder.newFile();
+			StatsCache.save( sidecar, sample() );
+			patch( sidecar, change[0], change[1] );
+			StatsCache cache = new StatsCache( 1L << 24 );
+			assertEquals( "patch at "+change[0], 0, cache.load(sidecar) );
+			assertNull( cache.get( 1L, false ) ); //nothing from before the damage is kept either
+		}
+	}
+
+
+	@Test
+	public void truncatedFileReadsAsEmpty() throws Exception {
+		File sidecar = folder.newFile();
+		StatsCache.save( sidecar, sample() );
+		byte[] whole = Files.readAllBytes( sidecar.toPath() );
+		for( int length : new int[] { 0, 6, 13, whole.length/2, whole.length-1 } ) {
+			try( DataOutputStream out = new DataOutputStream( new FileOutputStream(sidecar) ) ) {
+				out.write( whole, 0, length );
+			}
+			assertEquals( "truncated to "+length, 0, new StatsCache( 1L << 24 ).load(sidecar) );
+		}
+	}
+
+}  //end public class StatsCacheTest
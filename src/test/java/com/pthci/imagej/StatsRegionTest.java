@@ -0,0 +1,108 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Statistics from a selection are the same whether a large slice is scanned on one thread or
+ * shared out by row band, and are those of the selected pixels only.
+ */
+public class StatsRegionTest {
+	// big enough to be cut into bands, with a selection hanging off the right hand edge
+	private static final int SIZE = 2100 ;
+	private static final Roi ROI  = new OvalRoi( 1500, 300, 900, 1200 );
+
+	private final int threads = Prefs.getThreads();
+
+
+	@After
+	public void restoreThreads() {
+		Prefs.setThreads( threads );
+	}
+
+
+	private static ImageProcessor slice( int type ) {
+		ImageProcessor ip ;
+		if     ( type == ImagePlus.GRAY8  ) ip = new ByteProcessor( SIZE, SIZE );
+		else if( type == ImagePlus.GRAY16 ) ip = new ShortProcessor( SIZE, SIZE );
+		else if( type == ImagePlus.GRAY32 ) ip = new FloatProcessor( SIZE, SIZE );
+		else                                ip = new ColorProcessor( SIZE, SIZE );
+		Random random = new Random( type );
+		for( int i=0; i<SIZE*SIZE; i++ ) {
+			int value = 20 + random.nextInt( 200 );
+			if( i % SIZE < 100 ) value = 250; //a bright border outside the selection
+			if     ( type == ImagePlus.GRAY32    ) ip.setf( i, value*1.5f );
+			else if( type == ImagePlus.COLOR_RGB ) ip.set( i, value << 16 | (value/2) << 8 | value/3 );
+			else                                   ip.set( i, type == ImagePlus.GRAY16 ? value*100 : value );
+		}
+		return ip;
+	}
+
+
+	private static Object levelled( ImageProcessor ip, int threads ) {
+		Prefs.setThreads( threads );
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setStatsRegion( ROI );
+		return leveller.processToNewImage( new ImagePlus( "slice", ip ) ).getProcessor().getPixels();
+	}
+
+
+	@Test
+	public void bandsMatchOneThread() {
+		for( int type : new int[] { ImagePlus.GRAY8, ImagePlus.GRAY16, ImagePlus.GRAY32, ImagePlus.COLOR_RGB } ) {
+			ImageProcessor ip = slice( type );
+			Object serial = levelled( ip, 1 ), banded = levelled( ip, 4 );
+			if     ( serial instanceof byte[]  ) assertArrayEquals( "type "+type, (byte[]) serial, (byte[]) banded );
+			else if( serial instanceof short[] ) assertArrayEquals( "type "+type, (short[])serial, (short[])banded );
+			else if( serial instanceof float[] ) assertArrayEquals( "type "+type, (float[])serial, (float[])banded, 0f );
+			else                                 assertArrayEquals( "type "+type, (int[])  serial, (int[])  banded );
+		}
+	}
+
+
+	@Test
+	public void selectedPixelsSetTheRange() {
+		ImageProcessor ip = slice( ImagePlus.GRAY16 );
+		int min = 65535, max = 0, minPos = -1, maxPos = -1;
+		for( int y=0; y<SIZE; y++ ) {
+			for( int x=0; x<SIZE; x++ ) {
+				if( !ROI.contains( x, y ) ) continue;
+				int value = ip.get( x, y );
+				if( value < min ) { min = value; minPos = y*SIZE+x; }
+				if( value > max ) { max = value; maxPos = y*SIZE+x; }
+			}
+		}
+		short[] levelled = (short[])levelled( ip, 4 );
+		assertEquals( 0,     levelled[minPos] & 0xffff );
+		assertEquals( 65535, levelled[maxPos] & 0xffff );
+		assertEquals( 65535, levelled[0]      & 0xffff ); //the border is brighter than anything selected
+	}
+
+}  //end public class StatsRegionTest
@@ -0,0 +1,81 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Streaming a stack to a TIFF reads and levels each slice exactly once.
+ */
+public class StreamedSaveTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int N_SLICES = 5 ;
+
+
+	// A stack counting the reads of each slice into reads
+	private static ImageStack stack( final int[] reads ) {
+		ImageStack stack = new ImageStack( 64, 48 ) {
+			@Override
+			public ImageProcessor getProcessor( int n ) {
+				synchronized( reads ) { reads[n]++; }
+				return super.getProcessor( n );
+			}
+		};
+		for( int i=1; i<=N_SLICES; i++ ) {
+			short[] pixels = new short[64*48];
+			for( int p=0; p<pixels.length; p++ ) pixels[p] = (short)( 100*i + (p*7) % (500*i) );
+			stack.addSlice( "slice "+i, new ShortProcessor( 64, 48, pixels, null ) );
+		}
+		return stack;
+	}
+
+
+	@Test
+	public void everySliceIsReadAndLevelledOnce() throws Exception {
+		int[] reads = new int[ N_SLICES+1 ];
+		File output = new File( folder.getRoot(), "levelled.tif" );
+		ImagePlus image = new ImagePlus( "stack", stack(reads) );
+		Arrays.fill( reads, 0 ); //the ImagePlus constructor reads slice 1 to show it
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		long slicesBefore = LevelMetrics.TOTAL.getSlices();
+		leveller.process( image, output.getPath() );
+		assertArrayEquals( new int[] { 0, 1, 1, 1, 1, 1 }, reads );
+		assertEquals( N_SLICES, LevelMetrics.TOTAL.getSlices() - slicesBefore );
+		assertFalse( leveller.wasCancelled() );
+
+		ImagePlus expected = new AutoLevel_Slice().processToNewImage( new ImagePlus( "stack", stack(new int[N_SLICES+1]) ) );
+		ImagePlus written  = IJ.openImage( output.getPath() );
+		assertEquals( N_SLICES, written.getStackSize() );
+		for( int i=1; i<=N_SLICES; i++ ) {
+			assertArrayEquals( "slice "+i, (short[])expected.getStack().getPixels(i), (short[])written.getStack().getPixels(i) );
+		}
+	}
+
+}  //end public class StreamedSaveTest
@@ -0,0 +1,98 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ *
+ * AutoLevel_Slice code 2022 Prof Phil Threlfall-Holmes, TH Collaborative Innovation
+ * modification from tutorial template, licence terms unmodified.
+ */
+
+package com.pthci.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+/**
+ * Levelling the whole stack maps every slice through the one range of the stack, however
+ * different the ranges of its slices: a value levels the same in every slice it is in, the
+ * stack's extremes reach the ends of the output and the narrower slices do not.
+ */
+public class WholeStackTest {
+	private static final int N_SLICES = 4 ;
+	private static final int WIDTH    = 13 ;
+	private static final int HEIGHT   = 7 ;
+
+
+	// Slice i ramps from 30*i to 30*i + 90, in steps of scale, so neighbouring slices overlap
+	private static ImagePlus stack( int bitDepth, int scale ) {
+		ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for( int i=1; i<=N_SLICES; i++ ) {
+			ImageProcessor ip = bitDepth == 8  ? new ByteProcessor( WIDTH, HEIGHT )
+			                  : bitDepth == 16 ? new ShortProcessor( WIDTH, HEIGHT )
+			                  :                  new FloatProcessor( WIDTH, HEIGHT );
+			for( int p=0; p<WIDTH*HEIGHT; p++ ) ip.setf( p, scale * ( 30*i + p % 91 ) );
+			stack.addSlice( "slice "+i, ip );
+		}
+		return new ImagePlus( "stack", stack );
+	}
+
+
+	private static void assertOneRange( int bitDepth, int scale, double top ) {
+		ImagePlus image    = stack( bitDepth, scale );
+		ImageStack source  = stack( bitDepth, scale ).getStack();
+		AutoLevel_Slice leveller = new AutoLevel_Slice();
+		leveller.setWholeStack( true );
+		leveller.process( image );
+
+		Map<Float,Float> levels = new HashMap<>();
+		for( int i=1; i<=N_SLICES; i++ ) {
+			ImageProcessor in  = source.getProcessor( i );
+			ImageProcessor out = image.getStack().getProcessor( i );
+			double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+			for( int p=0; p<WIDTH*HEIGHT; p++ ) {
+				Float level = levels.putIfAbsent( in.getf(p), out.getf(p) );
+				if( level != null ) assertEquals( bitDepth+"-bit value "+in.getf(p)+" in slice "+i, level, out.getf(p), 0 );
+				min = Math.min( min, out.getf(p) );
+				max = Math.max( max, out.getf(p) );
+			}
+			if( i == 1        ) assertEquals( bitDepth+"-bit stack minimum", 0, min, 0 );
+			if( i == N_SLICES ) assertEquals( bitDepth+"-bit stack maximum", top, max, 1e-6 );
+			if( i > 1        ) assertTrue( bitDepth+"-bit slice "+i+" levelled from its own minimum", min > 0 );
+			if( i < N_SLICES ) assertTrue( bitDepth+"-bit slice "+i+" levelled from its own maximum", max < top );
+		}
+	}
+
+
+	@Test
+	public void bytesShareOneRange() {
+		assertOneRange( 8, 1, 255 );
+	}
+
+
+	@Test
+	public void shortsShareOneRange() {
+		assertOneRange( 16, 100, 65535 );
+	}
+
+
+	@Test
+	public void floatsShareOneRange() {
+		assertOneRange( 32, 1, 1 );
+	}
+
+}  //end public class WholeStackTest